@@ -2,15 +2,12 @@ package eu.europa.ec.digit.apigw.publisher;
 
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import springfox.documentation.builders.ApiInfoBuilder;
 import springfox.documentation.builders.PathSelectors;
 import springfox.documentation.builders.RequestHandlerSelectors;
@@ -20,13 +17,6 @@ import springfox.documentation.spi.service.contexts.SecurityContext;
 import springfox.documentation.spring.web.plugins.Docket;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -35,6 +25,7 @@ import static com.google.common.collect.Lists.newArrayList;
 
 @SpringBootApplication
 @EnableSwagger2
+@EnableScheduling
 public class Application {
 
     public static void main(String[] args) {
@@ -44,6 +35,19 @@ public class Application {
     @Value("${gateway.automation.host}")
     private String gatewayAutomationHost;
 
+    /* The token refresh, the node health checks and the connection eviction each make blocking calls, with one thread
+       a hung key manager would hold up the health checks and the other way round */
+    @Value("${wso2.scheduler.threads:3}")
+    private int schedulerThreads;
+
+    @Bean
+    public ThreadPoolTaskScheduler taskScheduler() {
+        ThreadPoolTaskScheduler taskScheduler = new ThreadPoolTaskScheduler();
+        taskScheduler.setPoolSize(schedulerThreads);
+        taskScheduler.setThreadNamePrefix("scheduled-");
+        return taskScheduler;
+    }
+
     @Bean
     public Docket labelApi() {
         return new Docket(DocumentationType.SWAGGER_2)
@@ -85,24 +89,6 @@ public class Application {
                 .build();
     }
 
-    @Bean
-    RestTemplate getRestTemplate() throws KeyManagementException, NoSuchAlgorithmException {
-        SSLContext sslContext = SSLContext.getInstance("SSL");
-        sslContext.init(null, new TrustManager[] { new X509TrustManager() {
-            public X509Certificate[] getAcceptedIssuers() {
-                    return null;
-                }
-            public void checkClientTrusted(X509Certificate[] certs, String authType) {}
-            public void checkServerTrusted(X509Certificate[] certs, String authType) {}
-        } }, new SecureRandom());
-        SSLConnectionSocketFactory csf = new SSLConnectionSocketFactory(sslContext);
-        CloseableHttpClient httpClient = HttpClients.custom().setSSLSocketFactory(csf).build();
-        HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory();
-        requestFactory.setHttpClient(httpClient);
-        RestTemplate restTemplate = new RestTemplate(requestFactory);
-        return restTemplate;
-    }
-
     private Predicate<String> paths() {
         return Predicates.not(PathSelectors.regex("/basic-error-controller.*"));
     }
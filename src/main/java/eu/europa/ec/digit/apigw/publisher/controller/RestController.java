@@ -1,12 +1,21 @@
 package eu.europa.ec.digit.apigw.publisher.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import eu.europa.ec.digit.apigw.publisher.entity.Api;
+import eu.europa.ec.digit.apigw.publisher.entity.CorsOperation;
+import eu.europa.ec.digit.apigw.publisher.entity.CorsOperationList;
 import eu.europa.ec.digit.apigw.publisher.entity.NewApi;
 import eu.europa.ec.digit.apigw.publisher.entity.Version;
 import eu.europa.ec.digit.apigw.publisher.security.CallTracer;
+import eu.europa.ec.digit.apigw.publisher.utils.ApiSearchQuery;
+import eu.europa.ec.digit.apigw.publisher.utils.BulkFanOut;
+import eu.europa.ec.digit.apigw.publisher.utils.CallPriority;
 import eu.europa.ec.digit.apigw.publisher.utils.Constants;
+import eu.europa.ec.digit.apigw.publisher.utils.OperationClass;
+import eu.europa.ec.digit.apigw.publisher.utils.PipelineRunner;
 import eu.europa.ec.digit.apigw.publisher.utils.RESTServiceUtils;
 import eu.europa.ec.digit.apigw.publisher.utils.ThymeleafConfiguration;
+import eu.europa.ec.digit.apigw.publisher.utils.WSO2AsyncCaller;
 import eu.europa.ec.digit.apigw.publisher.utils.WSO2Caller;
 import io.swagger.annotations.*;
 import lombok.extern.slf4j.Slf4j;
@@ -17,15 +26,21 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.client.AsyncRestTemplate;
 import org.springframework.web.client.RestTemplate;
 import org.thymeleaf.context.Context;
 import org.thymeleaf.spring5.SpringTemplateEngine;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 @org.springframework.web.bind.annotation.RestController
 @RequestMapping("/rest")
@@ -45,9 +60,25 @@ public class RestController {
     @Autowired
     CallTracer callTracer;
 
+    @Autowired
+    WSO2AsyncCaller wso2AsyncCaller;
+
+    @Autowired
+    PipelineRunner pipelineRunner;
+
+    @Autowired
+    BulkFanOut bulkFanOut;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
     @Autowired
     RestTemplate restTemplate;
 
+    @Autowired
+    @SuppressWarnings("deprecation")
+    AsyncRestTemplate asyncRestTemplate;
+
     @ApiOperation(value = "Publish a created REST API")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "API Published"),
@@ -61,7 +92,7 @@ public class RestController {
 
         ResponseEntity<String> publishCall = wso2Caller.publishApi(apiId, request);
         callTracer.fromResponse(request, response, publishCall.getStatusCode());
-        return wso2Caller.publishApi(apiId, request);
+        return publishCall;
     }
 
     @ApiOperation(value = "Publish REST API to WSO2")
@@ -71,120 +102,95 @@ public class RestController {
             @ApiResponse(code = 412, message = "Pre Condition failed")
     })
     @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<Api> create(@RequestBody NewApi api, HttpServletRequest request, HttpServletResponse response) {
+    public CompletableFuture<ResponseEntity<Api>> create(@RequestBody NewApi api, HttpServletRequest request, HttpServletResponse response) {
 
         String callID = UUID.randomUUID().toString();
         callTracer.fromRequest(request, callID);
 
-        Api apiToPublish = null;
         log.info("INCOMING REQUEST TO PUBLISH");
 
-        try {
-            if(!restServiceUtils.isCallValid(api, false)) {
+        if(!restServiceUtils.isCallValid(api, false)) {
+            Api errorApi = new Api();
+            errorApi.setCallError(true);
+            errorApi.setCallErrorMessage("Missing parameters.");
+            errorApi.setCallID(callID);
+            callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
+            return CompletableFuture.completedFuture(new ResponseEntity<>(errorApi, HttpStatus.BAD_REQUEST));
+        }
+
+        return pipelineRunner.run("rest.create", createTimeoutMs(api.getSwaggerEndpoint() != null), request, () -> wso2AsyncCaller.findConflictingApi(api.getApiName(), api.getApiContext(), request).thenCompose(conflictCall -> {
+            Api apiToPublish;
+            if(conflictCall.getStatusCode() != HttpStatus.OK && conflictCall.getStatusCode() != HttpStatus.NOT_FOUND) {
+                /** The user must retry again, probably a communication problem with the API Gateway */
+                apiToPublish = new Api();
                 apiToPublish.setCallError(true);
-                apiToPublish.setCallErrorMessage("Missing parameters.");
+                apiToPublish.setCallErrorMessage("Error looking for previous versions.");
                 apiToPublish.setCallID(callID);
-                callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
-                return new ResponseEntity<>(apiToPublish, HttpStatus.BAD_REQUEST);
+                callTracer.fromResponse(request, response, HttpStatus.SERVICE_UNAVAILABLE);
+                return CompletableFuture.completedFuture(new ResponseEntity<>(apiToPublish, HttpStatus.SERVICE_UNAVAILABLE));
             }
 
-            ResponseEntity<Version> previousVersionsCall = wso2Caller.searchForVersion(api.getApiName(), request);
-            if(previousVersionsCall.getStatusCode().is2xxSuccessful()) {
-                List<Api> existingApis = previousVersionsCall.getBody().getList();
-                for(Api existingApi : existingApis) {
-                    if(existingApi.getName().equals(api.getApiName())) {
-                        apiToPublish = existingApi;
-                        apiToPublish.setCallError(true);
-                        apiToPublish.setCallErrorMessage("There is already a published version with the same context, please create new version from this ID");
-                        apiToPublish.setCallID(callID);
-                        callTracer.fromResponse(request, response, HttpStatus.PRECONDITION_FAILED);
-                        return new ResponseEntity<>(apiToPublish, HttpStatus.PRECONDITION_FAILED);
-                    }
-                }
+            if(conflictCall.getStatusCode() == HttpStatus.OK) {
+                apiToPublish = conflictCall.getBody();
+                apiToPublish.setCallError(true);
+                apiToPublish.setCallErrorMessage(apiToPublish.getName().equals(api.getApiName())
+                        ? "There is already a published version with the same context, please create new version from this ID"
+                        : "The context " + api.getApiContext() + " is already used by the API with this ID, please choose another context");
+                apiToPublish.setCallID(callID);
+                callTracer.fromResponse(request, response, HttpStatus.PRECONDITION_FAILED);
+                return CompletableFuture.completedFuture(new ResponseEntity<>(apiToPublish, HttpStatus.PRECONDITION_FAILED));
+            }
 
-                Context apiTemplateContext = new Context();
-                apiTemplateContext.setVariable(ThymeleafConfiguration.NAME, api.getApiName());
-                apiTemplateContext.setVariable(ThymeleafConfiguration.DESCRIPTION, api.getApiDescription());
-                apiTemplateContext.setVariable(ThymeleafConfiguration.CONTEXT, api.getApiContext());
-                apiTemplateContext.setVariable(ThymeleafConfiguration.VERSION, api.getApiVersion());
-                apiTemplateContext.setVariable(ThymeleafConfiguration.PRODUCTION_ENDPOINT, api.getEndpoint());
-                apiTemplateContext.setVariable(ThymeleafConfiguration.DEFAULT_VERSION, api.isDefaultVersion());
-                apiTemplateContext.setVariable(Constants.API_ALLOWED_ORIGIN, api.getApiAllowedOrigins());
-                String jsonApiTemplate = templateEngine.process("create-api-template.json", apiTemplateContext);
+            Context apiTemplateContext = new Context();
+            apiTemplateContext.setVariable(ThymeleafConfiguration.NAME, api.getApiName());
+            apiTemplateContext.setVariable(ThymeleafConfiguration.DESCRIPTION, api.getApiDescription());
+            apiTemplateContext.setVariable(ThymeleafConfiguration.CONTEXT, api.getApiContext());
+            apiTemplateContext.setVariable(ThymeleafConfiguration.VERSION, api.getApiVersion());
+            apiTemplateContext.setVariable(ThymeleafConfiguration.PRODUCTION_ENDPOINT, api.getEndpoint());
+            apiTemplateContext.setVariable(ThymeleafConfiguration.DEFAULT_VERSION, api.isDefaultVersion());
+            apiTemplateContext.setVariable(Constants.API_ALLOWED_ORIGIN, api.getApiAllowedOrigins());
+            String jsonApiTemplate = templateEngine.process("create-api-template.json", apiTemplateContext);
 
-                Context swaggerTemplateContext = new Context();
-                swaggerTemplateContext.setVariable(ThymeleafConfiguration.NAME, api.getApiName());
-                String swaggerTemplate = templateEngine.process("default_swagger_definition.json", swaggerTemplateContext);
+            Context swaggerTemplateContext = new Context();
+            swaggerTemplateContext.setVariable(ThymeleafConfiguration.NAME, api.getApiName());
+            String swaggerTemplate = templateEngine.process("default_swagger_definition.json", swaggerTemplateContext);
 
-                log.info("Template and Swagger ready!");
+            log.info("Template and Swagger ready!");
 
-                ResponseEntity<Api> createApiCall = wso2Caller.createApi(jsonApiTemplate, request);
+            return wso2AsyncCaller.createApi(jsonApiTemplate, request).thenCompose(createApiCall -> {
                 if(!createApiCall.getStatusCode().is2xxSuccessful()) {
-                    apiToPublish = new Api();
-                    apiToPublish.setCallError(true);
-                    apiToPublish.setCallErrorMessage("There was a problem creating your API, please try again.");
-                    apiToPublish.setCallID(callID);
+                    Api errorApi = new Api();
+                    errorApi.setCallError(true);
+                    errorApi.setCallErrorMessage("There was a problem creating your API, please try again.");
+                    errorApi.setCallID(callID);
                     callTracer.fromResponse(request, response, createApiCall.getStatusCode());
-                    return new ResponseEntity<>(apiToPublish, createApiCall.getStatusCode());
+                    return CompletableFuture.completedFuture(new ResponseEntity<>(errorApi, createApiCall.getStatusCode()));
                 }
 
-                apiToPublish = createApiCall.getBody();
-
-                if(api.getSwaggerEndpoint() != null) {
-                    ResponseEntity<String> swaggerDefinition = getSwaggerDefinition(api.getSwaggerEndpoint());
-                    if(swaggerDefinition.getStatusCode().is2xxSuccessful()) {
-                        swaggerTemplate = swaggerDefinition.getBody();
-                    } else {
-                        apiToPublish.setCallError(true);
-                        apiToPublish.setCallErrorMessage("There was a problem calling your swagger endpoint, but the REST API was created, please check your Swagger Endpoint and update the API with ID: " + apiToPublish.getId());
-                        apiToPublish.setCallID(callID);
+                Api createdApi = createApiCall.getBody();
+                if(api.getSwaggerEndpoint() == null) {
+                    return updateSwaggerAndPublish(createdApi, swaggerTemplate, callID, request, response);
+                }
+                return getSwaggerDefinitionAsync(api.getSwaggerEndpoint()).thenCompose(swaggerDefinition -> {
+                    if(!swaggerDefinition.getStatusCode().is2xxSuccessful()) {
+                        createdApi.setCallError(true);
+                        createdApi.setCallErrorMessage("There was a problem calling your swagger endpoint, but the REST API was created, please check your Swagger Endpoint and update the API with ID: " + createdApi.getId());
+                        createdApi.setCallID(callID);
                         callTracer.fromResponse(request, response, HttpStatus.PRECONDITION_FAILED);
-                        return new ResponseEntity<>(apiToPublish, HttpStatus.PRECONDITION_FAILED);
+                        return CompletableFuture.completedFuture(new ResponseEntity<>(createdApi, HttpStatus.PRECONDITION_FAILED));
                     }
-                }
-
-                log.info("Updating swagger difinition for API: {}", apiToPublish.getId());
-
-                ResponseEntity<String> updateSwaggerCall = wso2Caller.updateSwagger(apiToPublish.getId(), swaggerTemplate, request);
-                if(!updateSwaggerCall.getStatusCode().is2xxSuccessful()) {
-                    apiToPublish.setCallError(true);
-                    apiToPublish.setCallErrorMessage("There was a problem updating API with ID: " + apiToPublish.getId() + " with the new Swagger definition, please review your Swagger and try again by updating the API.");
-                    apiToPublish.setCallID(callID);
-                    callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
-                    return new ResponseEntity<>(apiToPublish, HttpStatus.BAD_REQUEST);
-                }
-
-                ResponseEntity<String> publishResult = wso2Caller.publishApi(apiToPublish.getId(), request);
-                if(publishResult.getStatusCode().is2xxSuccessful()) {
-                    apiToPublish.setCallID(callID);
-                    callTracer.fromResponse(request, response, HttpStatus.OK);
-                    return new ResponseEntity<>(apiToPublish, HttpStatus.OK);
-                } else {
-                    /** The user must delete the returned ID and try again the operation */
-                    apiToPublish.setCallError(true);
-                    apiToPublish.setCallErrorMessage("The API was created but failed to publish");
-                    apiToPublish.setCallID(callID);
-                    callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
-                    return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-                }
-            } else {
-                /** The user must retry again, probably a communication problem with the API Gateway */
-                apiToPublish = new Api();
-                apiToPublish.setCallError(true);
-                apiToPublish.setCallErrorMessage("Error looking for previous versions.");
-                apiToPublish.setCallID(callID);
-                callTracer.fromResponse(request, response, HttpStatus.SERVICE_UNAVAILABLE);
-                return new ResponseEntity<>(apiToPublish, HttpStatus.SERVICE_UNAVAILABLE);
-            }
-        } catch(Exception e) {
-            apiToPublish = new Api();
-            apiToPublish.setCallError(true);
-            apiToPublish.setCallErrorMessage("Unknown error, please contact support team with the call ID");
-            apiToPublish.setCallID(callID);
-            callTracer.setSpanTag(request,"http.exception", e.getMessage());
+                    return updateSwaggerAndPublish(createdApi, swaggerDefinition.getBody(), callID, request, response);
+                });
+            });
+        }).exceptionally(e -> {
+            Api errorApi = new Api();
+            errorApi.setCallError(true);
+            errorApi.setCallErrorMessage("Unknown error, please contact support team with the call ID");
+            errorApi.setCallID(callID);
+            callTracer.setSpanTag(request,"http.exception", String.valueOf(e.getMessage()));
             callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
-            return new ResponseEntity<>(apiToPublish, HttpStatus.BAD_REQUEST);
-        }
+            return new ResponseEntity<>(errorApi, HttpStatus.BAD_REQUEST);
+        }));
     }
 
     @ApiOperation(value = "Create a new version of an existing REST API to WSO2")
@@ -327,7 +333,7 @@ public class RestController {
         String callID = UUID.randomUUID().toString();
         callTracer.fromRequest(request, callID);
 
-        if(origin == null) {
+        if(origin == null || origin.trim().isEmpty()) {
             Api errorApi = new Api();
             errorApi.setCallError(true);
             errorApi.setCallErrorMessage("Missing parameters.");
@@ -336,7 +342,7 @@ public class RestController {
             return new ResponseEntity<>(errorApi, HttpStatus.BAD_REQUEST);
         }
 
-        ResponseEntity<String> detailsCall = wso2Caller.getApiDetails(apiId, request);
+        ResponseEntity<String> detailsCall = wso2Caller.getApiDetailsForUpdate(apiId, request);
         if(!detailsCall.getStatusCode().is2xxSuccessful()) {
             Api errorApi = new Api();
             errorApi.setCallError(true);
@@ -348,13 +354,7 @@ public class RestController {
 
         JSONObject apiObject = new JSONObject(detailsCall.getBody());
         if(apiObject.has("corsConfiguration")) {
-            JSONObject corsConfiguration = apiObject.getJSONObject("corsConfiguration");
-            JSONArray accessControlAllowOrigins = corsConfiguration.getJSONArray("accessControlAllowOrigins");
-            if(accessControlAllowOrigins.length() == 1 && accessControlAllowOrigins.get(0).equals("*")) {
-                accessControlAllowOrigins.remove(0);
-            }
-            accessControlAllowOrigins.put(origin);
-
+            applyCorsOperation(apiObject.getJSONObject("corsConfiguration"), CorsOperation.Type.ADD_ORIGIN, origin);
         }
         ResponseEntity<Api> updateDefinitionCall = wso2Caller.updateDefinition(apiId, apiObject.toString(), request);
         updateDefinitionCall.getBody().setCallID(callID);
@@ -374,7 +374,7 @@ public class RestController {
         String callID = UUID.randomUUID().toString();
         callTracer.fromRequest(request, callID);
 
-        if(origin == null) {
+        if(origin == null || origin.trim().isEmpty()) {
             Api errorApi = new Api();
             errorApi.setCallError(true);
             errorApi.setCallErrorMessage("Missing parameters.");
@@ -383,7 +383,7 @@ public class RestController {
             return new ResponseEntity<>(errorApi, HttpStatus.BAD_REQUEST);
         }
 
-        ResponseEntity<String> detailsCall = wso2Caller.getApiDetails(apiId, request);
+        ResponseEntity<String> detailsCall = wso2Caller.getApiDetailsForUpdate(apiId, request);
         if(!detailsCall.getStatusCode().is2xxSuccessful()) {
             Api errorApi = new Api();
             errorApi.setCallError(true);
@@ -395,14 +395,7 @@ public class RestController {
 
         JSONObject apiObject = new JSONObject(detailsCall.getBody());
         if(apiObject.has("corsConfiguration")) {
-            JSONObject corsConfiguration = apiObject.getJSONObject("corsConfiguration");
-            JSONArray accessControlAllowOrigins = corsConfiguration.getJSONArray("accessControlAllowOrigins");
-            for(int i=0; i<accessControlAllowOrigins.length(); i++) {
-                String persistedOrigin = (String) accessControlAllowOrigins.get(i);
-                if(persistedOrigin.equals(origin)) {
-                    accessControlAllowOrigins.remove(i);
-                }
-            }
+            applyCorsOperation(apiObject.getJSONObject("corsConfiguration"), CorsOperation.Type.REMOVE_ORIGIN, origin);
         }
         ResponseEntity<Api> updateDefinitionCall = wso2Caller.updateDefinition(apiId, apiObject.toString(), request);
         updateDefinitionCall.getBody().setCallID(callID);
@@ -422,7 +415,7 @@ public class RestController {
         String callID = UUID.randomUUID().toString();
         callTracer.fromRequest(request, callID);
 
-        ResponseEntity<String> detailsCall = wso2Caller.getApiDetails(apiId, request);
+        ResponseEntity<String> detailsCall = wso2Caller.getApiDetailsForUpdate(apiId, request);
         if(!detailsCall.getStatusCode().is2xxSuccessful()) {
             Api errorApi = new Api();
             errorApi.setCallError(true);
@@ -434,16 +427,7 @@ public class RestController {
 
         JSONObject apiObject = new JSONObject(detailsCall.getBody());
         if(apiObject.has("corsConfiguration")) {
-            JSONObject corsConfiguration = apiObject.getJSONObject("corsConfiguration");
-            JSONArray accessControlAllowHeaders = corsConfiguration.getJSONArray("accessControlAllowHeaders");
-            boolean headerAlreadyExists = false;
-            for(int i = 0; i < accessControlAllowHeaders.length(); i++){
-                if(accessControlAllowHeaders.getString(i).equals(header))
-                    headerAlreadyExists = true;
-            }
-            if(!headerAlreadyExists) {
-                accessControlAllowHeaders.put(header);
-            }
+            applyCorsOperation(apiObject.getJSONObject("corsConfiguration"), CorsOperation.Type.ADD_HEADER, header);
         }
         ResponseEntity<Api> updateCall = wso2Caller.updateDefinition(apiId, apiObject.toString(), request);
         if(updateCall.getStatusCode().is2xxSuccessful()) {
@@ -464,7 +448,7 @@ public class RestController {
         String callID = UUID.randomUUID().toString();
         callTracer.fromRequest(request, callID);
 
-        ResponseEntity<String> detailsCall = wso2Caller.getApiDetails(apiId, request);
+        ResponseEntity<String> detailsCall = wso2Caller.getApiDetailsForUpdate(apiId, request);
         if(!detailsCall.getStatusCode().is2xxSuccessful()) {
             Api errorApi = new Api();
             errorApi.setCallError(true);
@@ -476,13 +460,7 @@ public class RestController {
 
         JSONObject apiObject = new JSONObject(detailsCall.getBody());
         if(apiObject.has("corsConfiguration")) {
-            JSONObject corsConfiguration = apiObject.getJSONObject("corsConfiguration");
-            JSONArray accessControlAllowHeaders = corsConfiguration.getJSONArray("accessControlAllowHeaders");
-            for(int i=0; i<accessControlAllowHeaders.length(); i++) {
-                if(((String)accessControlAllowHeaders.get(i)).equalsIgnoreCase(header)) {
-                    accessControlAllowHeaders.remove(i);
-                }
-            }
+            applyCorsOperation(apiObject.getJSONObject("corsConfiguration"), CorsOperation.Type.REMOVE_HEADER, header);
         }
         ResponseEntity<Api> updateCall = wso2Caller.updateDefinition(apiId, apiObject.toString(), request);
         if(updateCall.getStatusCode().is2xxSuccessful()) {
@@ -492,6 +470,58 @@ public class RestController {
         return updateCall;
     }
 
+    @ApiOperation(value = "Apply a list of CORS changes to one or many APIs, with a single update of each API")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "One API or error per API ID, in the order of their first operation", response = Version.class),
+            @ApiResponse(code = 400, message = "Bad request")
+    })
+    @PutMapping(path="/cors", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<Version>> updateCors(@RequestBody CorsOperationList corsOperationList, HttpServletRequest request, HttpServletResponse response) {
+
+        String callID = UUID.randomUUID().toString();
+        callTracer.fromRequest(request, callID);
+
+        Map<String, List<CorsOperation>> operationsByApi = new LinkedHashMap<>();
+        for(CorsOperation operation : corsOperationList.getOperations() == null ? new ArrayList<CorsOperation>() : corsOperationList.getOperations()) {
+            if(operation == null || operation.getApiId() == null || operation.getType() == null || operation.getValue() == null || operation.getValue().trim().isEmpty()) {
+                Version errorVersion = new Version();
+                errorVersion.setCallError(true);
+                errorVersion.setCallErrorMessage("Missing parameters, every operation needs an apiId, a type and a value.");
+                errorVersion.setCallID(callID);
+                callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
+                return CompletableFuture.completedFuture(new ResponseEntity<>(errorVersion, HttpStatus.BAD_REQUEST));
+            }
+            operationsByApi.computeIfAbsent(operation.getApiId(), key -> new ArrayList<>()).add(operation);
+        }
+
+        List<String> apiIds = new ArrayList<>(operationsByApi.keySet());
+        List<Integer> indexes = new ArrayList<>();
+        for(int i = 0; i < apiIds.size(); i++) {
+            indexes.add(i);
+        }
+        Api[] results = new Api[apiIds.size()];
+        /* A single API is an interactive change, it should not wait behind the fan-outs */
+        long timeoutMs;
+        if(apiIds.size() > 1) {
+            CallPriority.markBulk(request);
+            timeoutMs = pipelineRunner.bulkTimeoutMs(apiIds.size(), new OperationClass[]{OperationClass.READ, OperationClass.WRITE});
+        } else {
+            timeoutMs = pipelineRunner.timeoutMs(CallPriority.INTERACTIVE, OperationClass.READ, OperationClass.WRITE);
+        }
+        return pipelineRunner.run("rest.cors.batch", timeoutMs, request, () -> bulkFanOut.forEach("rest.cors.batch", indexes, i ->
+                updateCorsOfApi(apiIds.get(i), operationsByApi.get(apiIds.get(i)), callID, request)
+                        .exceptionally(e -> corsError(apiIds.get(i), "The api could not be updated", callID))
+                        .thenAccept(api -> results[i] = api)
+        ).thenApply(done -> {
+            Version version = new Version();
+            version.setList(new ArrayList<>(Arrays.asList(results)));
+            version.setCount(results.length);
+            version.setCallID(callID);
+            callTracer.fromResponse(request, response, HttpStatus.OK);
+            return new ResponseEntity<>(version, HttpStatus.OK);
+        }));
+    }
+
     @ApiOperation(value = "Get details of an API by ID")
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Api Info", response = Api.class),
@@ -511,8 +541,10 @@ public class RestController {
 
     @ApiOperation(value = "Get details of an API by Name")
     @ApiImplicitParams({
-            @ApiImplicitParam(paramType = "query",value = "Name or Name with *", required = true, dataType = "string", name = Constants.API_NAME_PARAMETER),
-            @ApiImplicitParam(paramType = "query", value = "return limit size", required = false, dataType = "string", name = Constants.API_QUERY_LIMIT)
+            @ApiImplicitParam(paramType = "query",value = "Name or Name with *, give either this or query", dataType = "string", name = Constants.API_NAME_PARAMETER),
+            @ApiImplicitParam(paramType = "query", value = "Words to find at the start of the name, context, version, provider or description words, instead of api_name", dataType = "string", name = Constants.API_QUERY_TEXT),
+            @ApiImplicitParam(paramType = "query", value = "return limit size", required = false, dataType = "string", name = Constants.API_QUERY_LIMIT),
+            @ApiImplicitParam(paramType = "query", value = "number of results to skip", dataType = "string", name = Constants.API_QUERY_OFFSET)
     })
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Version returned", response = Version.class),
@@ -531,12 +563,130 @@ public class RestController {
             version.setCallID(callID);
             return new ResponseEntity<>(version, HttpStatus.BAD_REQUEST);
         }
+        String parametersError = ApiSearchQuery.getParametersError(searchParameters);
+        if(parametersError != null) {
+            Version version = new Version();
+            version.setCallError(true);
+            version.setCallErrorMessage(parametersError);
+            version.setCallID(callID);
+            callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
+            return new ResponseEntity<>(version, HttpStatus.BAD_REQUEST);
+        }
         ResponseEntity<Version> searchCall = wso2Caller.searchForVersion(searchParameters, restServiceUtils.getLimit(searchParameters), request);
         searchCall.getBody().setCallID(callID);
         callTracer.fromResponse(request, response, searchCall.getStatusCode());
         return searchCall;
     }
 
+    /* One GET and at most one PUT for all the operations on an API, none when they leave its CORS as it was */
+    private CompletableFuture<Api> updateCorsOfApi(String apiId, List<CorsOperation> operations, String callID, HttpServletRequest request) {
+        return wso2AsyncCaller.getApiDetailsForUpdate(apiId, request).thenCompose(detailsCall -> {
+            if(!detailsCall.getStatusCode().is2xxSuccessful()) {
+                return CompletableFuture.completedFuture(corsError(apiId, "There was a problem getting your API, please try again.", callID));
+            }
+            JSONObject apiObject = new JSONObject(detailsCall.getBody());
+            /* Without a CORS configuration there is nothing to change, as on the single operation endpoints */
+            JSONObject corsConfiguration = apiObject.optJSONObject("corsConfiguration");
+            String originalCors = String.valueOf(corsConfiguration);
+            if(corsConfiguration != null) {
+                operations.forEach(operation -> applyCorsOperation(corsConfiguration, operation.getType(), operation.getValue()));
+            }
+            if(String.valueOf(corsConfiguration).equals(originalCors)) {
+                try {
+                    return CompletableFuture.completedFuture(withCallID(objectMapper.readValue(detailsCall.getBody(), Api.class), callID));
+                } catch (IOException e) {
+                    log.error(e.getMessage(), e);
+                    return CompletableFuture.completedFuture(corsError(apiId, "There was a problem getting your API, please try again.", callID));
+                }
+            }
+            return wso2AsyncCaller.updateDefinition(apiId, apiObject.toString(), request).thenApply(updateCall -> updateCall.getStatusCode().is2xxSuccessful()
+                    ? withCallID(updateCall.getBody(), callID) : corsError(apiId, "The api could not be updated", callID));
+        });
+    }
+
+    /* One CORS change, for the single operation endpoints and the batch alike: an origin or header already there is not
+       added twice, header names are compared ignoring case */
+    private void applyCorsOperation(JSONObject corsConfiguration, CorsOperation.Type type, String rawValue) {
+        String value = rawValue.trim();
+        boolean origin = type == CorsOperation.Type.ADD_ORIGIN || type == CorsOperation.Type.REMOVE_ORIGIN;
+        JSONArray values = corsConfiguration.getJSONArray(origin ? "accessControlAllowOrigins" : "accessControlAllowHeaders");
+        boolean found = false;
+        for(int i = values.length() - 1; i >= 0; i--) {
+            boolean sameValue = origin ? values.getString(i).equals(value) : values.getString(i).equalsIgnoreCase(value);
+            if(sameValue && (type == CorsOperation.Type.REMOVE_ORIGIN || type == CorsOperation.Type.REMOVE_HEADER)) {
+                values.remove(i);
+            }
+            found |= sameValue;
+        }
+        if(type == CorsOperation.Type.ADD_ORIGIN && !found) {
+            if(values.length() == 1 && values.get(0).equals("*")) {
+                values.remove(0);
+            }
+            values.put(value);
+        }
+        if(type == CorsOperation.Type.ADD_HEADER && !found) {
+            values.put(value);
+        }
+    }
+
+    private Api withCallID(Api api, String callID) {
+        api.setCallID(callID);
+        return api;
+    }
+
+    private Api corsError(String apiId, String message, String callID) {
+        Api errorApi = new Api();
+        errorApi.setId(apiId);
+        errorApi.setCallError(true);
+        errorApi.setCallErrorMessage(message);
+        errorApi.setCallID(callID);
+        return errorApi;
+    }
+
+    private CompletableFuture<ResponseEntity<Api>> updateSwaggerAndPublish(Api apiToPublish, String swaggerTemplate, String callID, HttpServletRequest request, HttpServletResponse response) {
+        log.info("Updating swagger difinition for API: {}", apiToPublish.getId());
+
+        return wso2AsyncCaller.updateSwagger(apiToPublish.getId(), swaggerTemplate, request).thenCompose(updateSwaggerCall -> {
+            if(!updateSwaggerCall.getStatusCode().is2xxSuccessful()) {
+                apiToPublish.setCallError(true);
+                apiToPublish.setCallErrorMessage("There was a problem updating API with ID: " + apiToPublish.getId() + " with the new Swagger definition, please review your Swagger and try again by updating the API.");
+                apiToPublish.setCallID(callID);
+                callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
+                return CompletableFuture.completedFuture(new ResponseEntity<>(apiToPublish, HttpStatus.BAD_REQUEST));
+            }
+            return wso2AsyncCaller.publishApi(apiToPublish.getId(), request).thenApply(publishResult -> {
+                if(publishResult.getStatusCode().is2xxSuccessful()) {
+                    apiToPublish.setCallID(callID);
+                    callTracer.fromResponse(request, response, HttpStatus.OK);
+                    return new ResponseEntity<>(apiToPublish, HttpStatus.OK);
+                } else {
+                    /** The user must delete the returned ID and try again the operation */
+                    apiToPublish.setCallError(true);
+                    apiToPublish.setCallErrorMessage("The API was created but failed to publish");
+                    apiToPublish.setCallID(callID);
+                    callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
+                    return new ResponseEntity<>(apiToPublish, HttpStatus.BAD_REQUEST);
+                }
+            });
+        });
+    }
+
+    /* The conflict search, the create, the swagger upload and the publish, after fetching the swagger definition if one is given */
+    private long createTimeoutMs(boolean fetchesSwagger) {
+        long timeoutMs = pipelineRunner.timeoutMs(CallPriority.INTERACTIVE, OperationClass.READ, OperationClass.WRITE, OperationClass.SWAGGER_UPLOAD, OperationClass.LIFECYCLE);
+        return fetchesSwagger ? timeoutMs + pipelineRunner.outsideCallTimeoutMs() : timeoutMs;
+    }
+
+    @SuppressWarnings("deprecation")
+    private CompletableFuture<ResponseEntity<String>> getSwaggerDefinitionAsync(String swaggerEndpoint) {
+        try {
+            return asyncRestTemplate.getForEntity(swaggerEndpoint, String.class).completable()
+                    .exceptionally(e -> new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        }
+    }
+
     private ResponseEntity<String> getSwaggerDefinition(String swaggerEndpoint) {
         try {
             return restTemplate.getForEntity(swaggerEndpoint, String.class);
@@ -4,9 +4,14 @@ import eu.europa.ec.digit.apigw.publisher.entity.Api;
 import eu.europa.ec.digit.apigw.publisher.entity.SOAPApi;
 import eu.europa.ec.digit.apigw.publisher.entity.Version;
 import eu.europa.ec.digit.apigw.publisher.security.CallTracer;
+import eu.europa.ec.digit.apigw.publisher.utils.ApiSearchQuery;
+import eu.europa.ec.digit.apigw.publisher.utils.CallPriority;
 import eu.europa.ec.digit.apigw.publisher.utils.Constants;
+import eu.europa.ec.digit.apigw.publisher.utils.OperationClass;
+import eu.europa.ec.digit.apigw.publisher.utils.PipelineRunner;
 import eu.europa.ec.digit.apigw.publisher.utils.SOAPServiceUtils;
 import eu.europa.ec.digit.apigw.publisher.utils.ThymeleafConfiguration;
+import eu.europa.ec.digit.apigw.publisher.utils.WSO2AsyncCaller;
 import eu.europa.ec.digit.apigw.publisher.utils.WSO2Caller;
 import io.swagger.annotations.*;
 import lombok.extern.slf4j.Slf4j;
@@ -20,10 +25,10 @@ import org.thymeleaf.spring5.SpringTemplateEngine;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/soap")
@@ -40,6 +45,12 @@ public class SOAPController {
     @Autowired
     private WSO2Caller wso2Caller;
 
+    @Autowired
+    private WSO2AsyncCaller wso2AsyncCaller;
+
+    @Autowired
+    private PipelineRunner pipelineRunner;
+
     @Autowired
     private CallTracer callTracer;
 
@@ -60,91 +71,91 @@ public class SOAPController {
             @ApiResponse(code = 400, message = "Bad request")
     })
     @PostMapping(consumes = {"application/json"})
-    public ResponseEntity<Api> publishSoap(@RequestBody SOAPApi soapApi, HttpServletRequest request, HttpServletResponse response) {
+    public CompletableFuture<ResponseEntity<Api>> publishSoap(@RequestBody SOAPApi soapApi, HttpServletRequest request, HttpServletResponse response) {
 
         String callID = UUID.randomUUID().toString();
         callTracer.fromRequest(request, callID);
 
-        Api apiToPublish;
         log.info("INCOMING REQUEST TO PUBLISH SOAP");
 
-        try {
-            if(!soapServiceUtils.isCallValid(soapApi, false)) {
+        if(!soapServiceUtils.isCallValid(soapApi, false)) {
+            Api apiToPublish = new Api();
+            apiToPublish.setCallError(true);
+            apiToPublish.setCallErrorMessage("Missing parameters.");
+            apiToPublish.setCallID(callID);
+            callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
+            return CompletableFuture.completedFuture(new ResponseEntity<>(apiToPublish, HttpStatus.BAD_REQUEST));
+        }
+
+        return pipelineRunner.run("soap.create", pipelineRunner.timeoutMs(CallPriority.INTERACTIVE, OperationClass.READ, OperationClass.WRITE, OperationClass.LIFECYCLE), request, () -> wso2AsyncCaller.findConflictingApi(soapApi.getApiName(), soapApi.getApiContext(), request).thenCompose(conflictCall -> {
+            Api apiToPublish;
+            if(conflictCall.getStatusCode() != HttpStatus.OK && conflictCall.getStatusCode() != HttpStatus.NOT_FOUND) {
+                /* The user must retry again, probably a communication problem with the API Gateway */
                 apiToPublish = new Api();
                 apiToPublish.setCallError(true);
-                apiToPublish.setCallErrorMessage("Missing parameters.");
+                apiToPublish.setCallErrorMessage("Error looking for previous versions.");
                 apiToPublish.setCallID(callID);
-                callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
-                return new ResponseEntity<>(apiToPublish, HttpStatus.BAD_REQUEST);
+                callTracer.fromResponse(request, response, HttpStatus.SERVICE_UNAVAILABLE);
+                return CompletableFuture.completedFuture(new ResponseEntity<>(apiToPublish, HttpStatus.SERVICE_UNAVAILABLE));
             }
 
-            ResponseEntity<Version> previousVersionsCall = wso2Caller.searchForVersion(soapApi.getApiName(), request);
-            if(previousVersionsCall.getStatusCode().is2xxSuccessful()) {
-                List<Api> existingApis = previousVersionsCall.getBody().getList();
-                for(Api api : existingApis) {
-                    if(api.getName().equals(soapApi.getApiName())) {
-                        apiToPublish = api;
-                        apiToPublish.setCallError(true);
-                        apiToPublish.setCallErrorMessage("There is already a published version with the same context, please create new version from this ID");
-                        apiToPublish.setCallID(callID);
-                        callTracer.fromResponse(request, response, HttpStatus.PRECONDITION_FAILED);
-                        return new ResponseEntity<>(apiToPublish, HttpStatus.PRECONDITION_FAILED);
-                    }
-                }
+            if(conflictCall.getStatusCode() == HttpStatus.OK) {
+                apiToPublish = conflictCall.getBody();
+                apiToPublish.setCallError(true);
+                apiToPublish.setCallErrorMessage(apiToPublish.getName().equals(soapApi.getApiName())
+                        ? "There is already a published version with the same context, please create new version from this ID"
+                        : "The context " + soapApi.getApiContext() + " is already used by the API with this ID, please choose another context");
+                apiToPublish.setCallID(callID);
+                callTracer.fromResponse(request, response, HttpStatus.PRECONDITION_FAILED);
+                return CompletableFuture.completedFuture(new ResponseEntity<>(apiToPublish, HttpStatus.PRECONDITION_FAILED));
+            }
 
-                Context apiTemplateContext = new Context();
-                apiTemplateContext.setVariable(ThymeleafConfiguration.NAME, soapApi.getApiName());
-                apiTemplateContext.setVariable(ThymeleafConfiguration.DESCRIPTION, soapApi.getApiDescription() == null ? "---" : soapApi.getApiDescription());
-                apiTemplateContext.setVariable(ThymeleafConfiguration.CONTEXT, soapApi.getApiContext());
-                apiTemplateContext.setVariable(ThymeleafConfiguration.VERSION, soapApi.getApiVersion());
-                apiTemplateContext.setVariable(ThymeleafConfiguration.PRODUCTION_ENDPOINT, soapApi.getEndpoint());
-                apiTemplateContext.setVariable(ThymeleafConfiguration.WSDL_URI, soapApi.getWsdlEndpoint());
-                apiTemplateContext.setVariable(ThymeleafConfiguration.DEFAULT_VERSION, soapApi.isDefaultVersion());
+            Context apiTemplateContext = new Context();
+            apiTemplateContext.setVariable(ThymeleafConfiguration.NAME, soapApi.getApiName());
+            apiTemplateContext.setVariable(ThymeleafConfiguration.DESCRIPTION, soapApi.getApiDescription() == null ? "---" : soapApi.getApiDescription());
+            apiTemplateContext.setVariable(ThymeleafConfiguration.CONTEXT, soapApi.getApiContext());
+            apiTemplateContext.setVariable(ThymeleafConfiguration.VERSION, soapApi.getApiVersion());
+            apiTemplateContext.setVariable(ThymeleafConfiguration.PRODUCTION_ENDPOINT, soapApi.getEndpoint());
+            apiTemplateContext.setVariable(ThymeleafConfiguration.WSDL_URI, soapApi.getWsdlEndpoint());
+            apiTemplateContext.setVariable(ThymeleafConfiguration.DEFAULT_VERSION, soapApi.isDefaultVersion());
 
-                String jsonApiTemplate = templateEngine.process("create-soap-api-template.json", apiTemplateContext);
+            String jsonApiTemplate = templateEngine.process("create-soap-api-template.json", apiTemplateContext);
 
-                ResponseEntity<Api> createApiCall = wso2Caller.createApi(jsonApiTemplate, request);
+            return wso2AsyncCaller.createApi(jsonApiTemplate, request).thenCompose(createApiCall -> {
                 if(!createApiCall.getStatusCode().is2xxSuccessful()) {
-                    apiToPublish = new Api();
-                    apiToPublish.setCallError(true);
-                    apiToPublish.setCallErrorMessage("There was a problem creating your API, please try again.");
-                    apiToPublish.setCallID(callID);
+                    Api errorApi = new Api();
+                    errorApi.setCallError(true);
+                    errorApi.setCallErrorMessage("There was a problem creating your API, please try again.");
+                    errorApi.setCallID(callID);
                     callTracer.fromResponse(request, response, createApiCall.getStatusCode());
-                    return new ResponseEntity<>(apiToPublish, createApiCall.getStatusCode());
+                    return CompletableFuture.completedFuture(new ResponseEntity<>(errorApi, createApiCall.getStatusCode()));
                 }
 
-                apiToPublish = createApiCall.getBody();
-
-                if(wso2Caller.publishApi(apiToPublish.getId(), request).getStatusCode().equals(HttpStatus.OK)) {
-                    apiToPublish.setCallID(callID);
-                    callTracer.fromResponse(request, response, HttpStatus.OK);
-                    return new ResponseEntity<>(apiToPublish, HttpStatus.OK);
-                } else {
-                    /* The user must delete the returned ID and try again the operation */
-                    apiToPublish.setCallError(true);
-                    apiToPublish.setCallErrorMessage("The API was created but failed to publish");
-                    apiToPublish.setCallID(callID);
-                    callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
-                    return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-                }
-            } else {
-                /* The user must retry again, probably a communication problem with the API Gateway */
-                apiToPublish = new Api();
-                apiToPublish.setCallError(true);
-                apiToPublish.setCallErrorMessage("Error looking for previous versions.");
-                apiToPublish.setCallID(callID);
-                callTracer.fromResponse(request, response, HttpStatus.SERVICE_UNAVAILABLE);
-                return new ResponseEntity<>(apiToPublish, HttpStatus.SERVICE_UNAVAILABLE);
-            }
-        } catch(Exception e) {
+                Api createdApi = createApiCall.getBody();
+                return wso2AsyncCaller.publishApi(createdApi.getId(), request).thenApply(publishCall -> {
+                    if(publishCall.getStatusCode().equals(HttpStatus.OK)) {
+                        createdApi.setCallID(callID);
+                        callTracer.fromResponse(request, response, HttpStatus.OK);
+                        return new ResponseEntity<>(createdApi, HttpStatus.OK);
+                    } else {
+                        /* The user must delete the returned ID and try again the operation */
+                        createdApi.setCallError(true);
+                        createdApi.setCallErrorMessage("The API was created but failed to publish");
+                        createdApi.setCallID(callID);
+                        callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
+                        return new ResponseEntity<>(createdApi, HttpStatus.BAD_REQUEST);
+                    }
+                });
+            });
+        }).exceptionally(e -> {
             log.error(e.getMessage(), e);
-            apiToPublish = new Api();
+            Api apiToPublish = new Api();
             apiToPublish.setCallError(true);
             apiToPublish.setCallErrorMessage("Unknown error, please contact support team with the call ID");
             apiToPublish.setCallID(callID);
             callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
             return new ResponseEntity<>(apiToPublish, HttpStatus.BAD_REQUEST);
-        }
+        }));
     }
 
     @ApiOperation(value = "Create a new version of an existing SOAP API to WSO2")
@@ -281,8 +292,10 @@ public class SOAPController {
 
     @ApiOperation(value = "Get details of a SOAP API by Name")
     @ApiImplicitParams({
-            @ApiImplicitParam(paramType = "query",value = "Name or Name with *", required = true, dataType = "string", name = Constants.API_NAME_PARAMETER),
-            @ApiImplicitParam(paramType = "query", value = "return limit size", dataType = "string", name = Constants.API_QUERY_LIMIT)
+            @ApiImplicitParam(paramType = "query",value = "Name or Name with *, give either this or query", dataType = "string", name = Constants.API_NAME_PARAMETER),
+            @ApiImplicitParam(paramType = "query", value = "Words to find at the start of the name, context, version, provider or description words, instead of api_name", dataType = "string", name = Constants.API_QUERY_TEXT),
+            @ApiImplicitParam(paramType = "query", value = "return limit size", dataType = "string", name = Constants.API_QUERY_LIMIT),
+            @ApiImplicitParam(paramType = "query", value = "number of results to skip", dataType = "string", name = Constants.API_QUERY_OFFSET)
     })
     @ApiResponses(value = {
             @ApiResponse(code = 200, message = "Version returned", response = Version.class),
@@ -301,6 +314,15 @@ public class SOAPController {
             version.setCallID(callID);
             return new ResponseEntity<>(version, HttpStatus.BAD_REQUEST);
         }
+        String parametersError = ApiSearchQuery.getParametersError(searchParameters);
+        if(parametersError != null) {
+            Version version = new Version();
+            version.setCallError(true);
+            version.setCallErrorMessage(parametersError);
+            version.setCallID(callID);
+            callTracer.fromResponse(request, response, HttpStatus.BAD_REQUEST);
+            return new ResponseEntity<>(version, HttpStatus.BAD_REQUEST);
+        }
         ResponseEntity<Version> searchCall = wso2Caller.searchForVersion(searchParameters, soapServiceUtils.getLimit(searchParameters), request);
         Objects.requireNonNull(searchCall.getBody()).setCallID(callID);
         callTracer.fromResponse(request, response, searchCall.getStatusCode());
@@ -2,7 +2,11 @@ package eu.europa.ec.digit.apigw.publisher.controller;
 
 import eu.europa.ec.digit.apigw.publisher.entity.*;
 import eu.europa.ec.digit.apigw.publisher.security.CallTracer;
-import eu.europa.ec.digit.apigw.publisher.utils.RESTServiceUtils;
+import eu.europa.ec.digit.apigw.publisher.utils.BulkFanOut;
+import eu.europa.ec.digit.apigw.publisher.utils.CallPriority;
+import eu.europa.ec.digit.apigw.publisher.utils.OperationClass;
+import eu.europa.ec.digit.apigw.publisher.utils.PipelineRunner;
+import eu.europa.ec.digit.apigw.publisher.utils.WSO2AsyncCaller;
 import eu.europa.ec.digit.apigw.publisher.utils.WSO2Caller;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
@@ -19,7 +23,15 @@ import org.springframework.web.bind.annotation.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 @Slf4j
 @RestController
@@ -31,10 +43,16 @@ public class SubscriptionController {
     private WSO2Caller wso2Caller;
 
     @Autowired
-    private CallTracer callTracer;
+    private WSO2AsyncCaller wso2AsyncCaller;
+
+    @Autowired
+    private PipelineRunner pipelineRunner;
 
     @Autowired
-    private RESTServiceUtils restServiceUtils;
+    private BulkFanOut bulkFanOut;
+
+    @Autowired
+    private CallTracer callTracer;
 
     @ApiOperation(value = "Get all the subscriptions of an Application")
     @ApiResponses(value = {
@@ -52,28 +70,99 @@ public class SubscriptionController {
         return listCall;
     }
 
-    @ApiOperation(value = "Subscribe an API with a given api ID")
+    @ApiOperation(value = "Get the subscriptions of your applications to an API, given by its ID or as provider-name-version")
     @ApiResponses(value = {
-            @ApiResponse(code = 200, message = "Application Info", response = Subscription.class),
+            @ApiResponse(code = 200, message = "Subscriptions", response = SubscriptionList.class),
+            @ApiResponse(code = 400, message = "Bad request"),
+            @ApiResponse(code = 404, message = "No such API")
+    })
+    @GetMapping(path="/api/{api}")
+    public CompletableFuture<ResponseEntity<SubscriptionList>> getSubscriptionsByApi(@PathVariable String api, HttpServletRequest request, HttpServletResponse response) {
+
+        String callID = UUID.randomUUID().toString();
+        callTracer.fromRequest(request, callID);
+
+        return pipelineRunner.run("subscription.search.api", pipelineRunner.bulkTimeoutMs(), request, () -> wso2AsyncCaller.searchSubscriptionsByApi(api, request).thenApply(listCall -> {
+            listCall.getBody().setCallID(callID);
+            callTracer.fromResponse(request, response, listCall.getStatusCode());
+            return listCall;
+        }));
+    }
+
+    @ApiOperation(value = "Subscribe an application to the APIs with the given IDs, skipping those it is subscribed to already")
+    @ApiResponses(value = {
+            @ApiResponse(code = 200, message = "One subscription or error per API", response = SubscriptionList.class),
             @ApiResponse(code = 400, message = "Bad request")
     })
     @PutMapping(path="/{applicationID}/apis")
-    public ResponseEntity<SubscriptionList> subscribeAppToApi(@PathVariable String applicationID, @RequestBody ApiList apiList, HttpServletRequest request, HttpServletResponse response) {
+    public CompletableFuture<ResponseEntity<SubscriptionList>> subscribeAppToApi(@PathVariable String applicationID, @RequestBody ApiList apiList, HttpServletRequest request, HttpServletResponse response) {
 
         String callID = UUID.randomUUID().toString();
         callTracer.fromRequest(request, callID);
+        CallPriority.markBulk(request);
 
-        SubscriptionList subscriptionList = new SubscriptionList();
-        subscriptionList.setList(new ArrayList<>());
-        if(apiList.getIdList() != null) {
-            for(String apiID : apiList.getIdList()) {
-                ResponseEntity<Subscription> subscribeCall = wso2Caller.subscribe(applicationID, apiID, request);
-                subscribeCall.getBody().setCallID(callID);
-                subscriptionList.getList().add(subscribeCall.getBody());
+        /* One result per API, in the order asked, an API given twice is subscribed once */
+        List<String> apiIDs = new ArrayList<>(apiList.getIdList() == null ? new LinkedHashSet<>() : new LinkedHashSet<>(apiList.getIdList()));
+        return pipelineRunner.run("subscription.subscribe", pipelineRunner.bulkTimeoutMs(apiIDs.size(), new OperationClass[]{OperationClass.READ, OperationClass.READ, OperationClass.WRITE}, OperationClass.READ), request, () -> wso2AsyncCaller.searchSubscriptionsForApplication(applicationID, request).thenCompose(listCall -> {
+            if(!listCall.getStatusCode().is2xxSuccessful()) {
+                listCall.getBody().setCallID(callID);
+                callTracer.fromResponse(request, response, listCall.getStatusCode());
+                return CompletableFuture.completedFuture(listCall);
+            }
+            Map<String, Subscription> existingSubscriptions = new HashMap<>();
+            if(listCall.getBody().getList() != null) {
+                listCall.getBody().getList().forEach(subscription -> existingSubscriptions.put(subscription.getApiIdentifier(), subscription));
             }
-        }
-        callTracer.fromResponse(request, response, HttpStatus.OK);
-        return new ResponseEntity<>(subscriptionList, HttpStatus.OK);
+            Subscription[] results = new Subscription[apiIDs.size()];
+            List<Integer> toSubscribe = Collections.synchronizedList(new ArrayList<>());
+            List<Integer> indexes = new ArrayList<>();
+            for(int i = 0; i < apiIDs.size(); i++) {
+                indexes.add(i);
+            }
+            /* The store lists the subscriptions as provider-name-version, each ID is resolved to it first, from the
+               ApiIndex or the publisher. An ID that cannot be resolved for another reason than 404 is still tried */
+            return bulkFanOut.forEach("subscription.subscribe.resolve", indexes, i -> wso2AsyncCaller.findApiIdentifier(apiIDs.get(i), request).thenAccept(identifierCall -> {
+                if(identifierCall.getStatusCode() == HttpStatus.NOT_FOUND) {
+                    Subscription notFound = new Subscription();
+                    notFound.setApiIdentifier(apiIDs.get(i));
+                    notFound.setApplicationId(applicationID);
+                    setSubscriptionError(notFound, "No API found for: " + apiIDs.get(i), callID);
+                    results[i] = notFound;
+                    return;
+                }
+                Subscription existingSubscription = existingSubscriptions.get(apiIDs.get(i));
+                if(existingSubscription == null && identifierCall.getStatusCode().is2xxSuccessful()) {
+                    existingSubscription = existingSubscriptions.get(identifierCall.getBody());
+                }
+                if(existingSubscription != null) {
+                    existingSubscription.setCallID(callID);
+                    results[i] = existingSubscription;
+                } else {
+                    toSubscribe.add(i);
+                }
+            })).thenCompose(resolved -> bulkFanOut.forEach("subscription.subscribe", new ArrayList<>(toSubscribe), i -> wso2AsyncCaller.subscribe(applicationID, apiIDs.get(i), request).handle((subscribeCall, e) -> {
+                Subscription subscription = subscribeCall != null && subscribeCall.getBody() != null ? subscribeCall.getBody() : new Subscription();
+                if(e != null || subscribeCall == null || subscribeCall.getBody() == null) {
+                    setSubscriptionError(subscription, "We were not able to subscribe to the API, please try again later.", callID);
+                }
+                if(subscription.getApiIdentifier() == null) {
+                    subscription.setApiIdentifier(apiIDs.get(i));
+                }
+                if(subscription.getApplicationId() == null) {
+                    subscription.setApplicationId(applicationID);
+                }
+                subscription.setCallID(callID);
+                results[i] = subscription;
+                return null;
+            }))).thenApply(done -> {
+                SubscriptionList subscriptionList = new SubscriptionList();
+                subscriptionList.setList(new ArrayList<>(Arrays.asList(results)));
+                subscriptionList.setCount(results.length);
+                subscriptionList.setCallID(callID);
+                callTracer.fromResponse(request, response, HttpStatus.OK);
+                return new ResponseEntity<>(subscriptionList, HttpStatus.OK);
+            });
+        }));
     }
 
     @ApiOperation(value = "Adds an origin to all the subscribed APIs by an application")
@@ -82,61 +171,14 @@ public class SubscriptionController {
             @ApiResponse(code = 400, message = "Bad request")
     })
     @PutMapping(path="/{applicationID}/apis/origin")
-    public ResponseEntity<SubscriptionList> addOriginToAllApis(@PathVariable String applicationID, @RequestParam String origin, HttpServletRequest request, HttpServletResponse response) {
-
-        String callID = UUID.randomUUID().toString();
-        callTracer.fromRequest(request, callID);
-
-        ResponseEntity<SubscriptionList> listCall = wso2Caller.searchSubscriptionsForApplication(applicationID, request);
-        if(!listCall.getStatusCode().is2xxSuccessful()) {
-            listCall.getBody().setCallID(callID);
-            return listCall;
-        }
-
-        for(Subscription subscription : listCall.getBody().getList()) {
-            //start stupid workaround
-            String apiName = restServiceUtils.getApiNameFromIdentifier(subscription.getApiIdentifier());
-            String version = restServiceUtils.getApiVersionFromIdentifier(subscription.getApiIdentifier());
-            //end stupid workaround
-            ResponseEntity<Version> detailsCall = wso2Caller.searchForVersion(apiName, 10, request);
-            if(!detailsCall.getStatusCode().is2xxSuccessful()) {
-                subscription.setCallError(true);
-                subscription.setCallErrorMessage("There was a problem getting your API, please try again.");
-                subscription.setCallID(callID);
-            } else {
-                for(Api api : detailsCall.getBody().getList()) {
-                    if(api.getVersion().equals(version)) {
-                        log.info(api.getVersion() + " - " + version + " - " + api.getId());
-                        ResponseEntity<String> apiCall = wso2Caller.getApiDetails(api.getId(), request);
-                        log.info(apiCall.getStatusCode().toString());
-                        if(apiCall.getStatusCode().is2xxSuccessful()) {
-                            JSONObject apiObject = new JSONObject(apiCall.getBody());
-                            if(apiObject.has("corsConfiguration")) {
-                                JSONObject corsConfiguration = apiObject.getJSONObject("corsConfiguration");
-                                JSONArray accessControlAllowOrigins = corsConfiguration.getJSONArray("accessControlAllowOrigins");
-                                if(accessControlAllowOrigins.length() == 1 && accessControlAllowOrigins.get(0).equals("*")) {
-                                    accessControlAllowOrigins.remove(0);
-                                }
-                                accessControlAllowOrigins.put(origin);
-                            }
-                            ResponseEntity<Api> updateDefinitionCall = wso2Caller.updateDefinition(api.getId(), apiObject.toString(), request);
-                            updateDefinitionCall.getBody().setCallID(callID);
-                            if(!updateDefinitionCall.getStatusCode().is2xxSuccessful()) {
-                                subscription.setCallError(true);
-                                subscription.setCallErrorMessage("The api could not be updated");
-                            }
-                        } else {
-                            subscription.setCallError(true);
-                            subscription.setCallErrorMessage("There was a problem getting your API, please try again.");
-                            subscription.setCallID(callID);
-                        }
-                    }
-                }
+    public CompletableFuture<ResponseEntity<SubscriptionList>> addOriginToAllApis(@PathVariable String applicationID, @RequestParam String origin, HttpServletRequest request, HttpServletResponse response) {
+        return updateCorsOfAllApis("subscription.origin.add", applicationID, corsConfiguration -> {
+            JSONArray accessControlAllowOrigins = corsConfiguration.getJSONArray("accessControlAllowOrigins");
+            if(accessControlAllowOrigins.length() == 1 && accessControlAllowOrigins.get(0).equals("*")) {
+                accessControlAllowOrigins.remove(0);
             }
-        }
-        listCall.getBody().setCallID(callID);
-        callTracer.fromResponse(request, response, listCall.getStatusCode());
-        return new ResponseEntity<>(listCall.getBody(), HttpStatus.OK);
+            accessControlAllowOrigins.put(origin);
+        }, request, response);
     }
 
     @ApiOperation(value = "Removes an origin to all the subscribed APIs by an application")
@@ -145,63 +187,16 @@ public class SubscriptionController {
             @ApiResponse(code = 400, message = "Bad request")
     })
     @DeleteMapping(path="/{applicationID}/apis/origin")
-    public ResponseEntity<SubscriptionList> removeOriginToAllApis(@PathVariable String applicationID, @RequestParam String origin, HttpServletRequest request, HttpServletResponse response) {
-
-        String callID = UUID.randomUUID().toString();
-        callTracer.fromRequest(request, callID);
-
-        ResponseEntity<SubscriptionList> listCall = wso2Caller.searchSubscriptionsForApplication(applicationID, request);
-        if(!listCall.getStatusCode().is2xxSuccessful()) {
-            listCall.getBody().setCallID(callID);
-            return listCall;
-        }
-
-        for(Subscription subscription : listCall.getBody().getList()) {
-            //start stupid workaround
-            String apiName = restServiceUtils.getApiNameFromIdentifier(subscription.getApiIdentifier());
-            String version = restServiceUtils.getApiVersionFromIdentifier(subscription.getApiIdentifier());
-            //end stupid workaround
-            ResponseEntity<Version> detailsCall = wso2Caller.searchForVersion(apiName, 10, request);
-            if(!detailsCall.getStatusCode().is2xxSuccessful()) {
-                subscription.setCallError(true);
-                subscription.setCallErrorMessage("There was a problem getting your API, please try again.");
-                subscription.setCallID(callID);
-            } else {
-                for(Api api : detailsCall.getBody().getList()) {
-                    if(api.getVersion().equals(version)) {
-                        log.info(api.getVersion() + " - " + version + " - " + api.getId());
-                        ResponseEntity<String> apiCall = wso2Caller.getApiDetails(api.getId(), request);
-                        log.info(apiCall.getStatusCode().toString());
-                        if(apiCall.getStatusCode().is2xxSuccessful()) {
-                            JSONObject apiObject = new JSONObject(apiCall.getBody());
-                            if(apiObject.has("corsConfiguration")) {
-                                JSONObject corsConfiguration = apiObject.getJSONObject("corsConfiguration");
-                                JSONArray accessControlAllowOrigins = corsConfiguration.getJSONArray("accessControlAllowOrigins");
-                                for(int i=0; i<accessControlAllowOrigins.length(); i++) {
-                                    String persistedOrigin = (String) accessControlAllowOrigins.get(i);
-                                    if(persistedOrigin.equals(origin)) {
-                                        accessControlAllowOrigins.remove(i);
-                                    }
-                                }
-                            }
-                            ResponseEntity<Api> updateDefinitionCall = wso2Caller.updateDefinition(api.getId(), apiObject.toString(), request);
-                            updateDefinitionCall.getBody().setCallID(callID);
-                            if(!updateDefinitionCall.getStatusCode().is2xxSuccessful()) {
-                                subscription.setCallError(true);
-                                subscription.setCallErrorMessage("The api could not be updated");
-                            }
-                        } else {
-                            subscription.setCallError(true);
-                            subscription.setCallErrorMessage("There was a problem getting your API, please try again.");
-                            subscription.setCallID(callID);
-                        }
-                    }
+    public CompletableFuture<ResponseEntity<SubscriptionList>> removeOriginToAllApis(@PathVariable String applicationID, @RequestParam String origin, HttpServletRequest request, HttpServletResponse response) {
+        return updateCorsOfAllApis("subscription.origin.remove", applicationID, corsConfiguration -> {
+            JSONArray accessControlAllowOrigins = corsConfiguration.getJSONArray("accessControlAllowOrigins");
+            for(int i = accessControlAllowOrigins.length() - 1; i >= 0; i--) {
+                String persistedOrigin = (String) accessControlAllowOrigins.get(i);
+                if(persistedOrigin.equals(origin)) {
+                    accessControlAllowOrigins.remove(i);
                 }
             }
-        }
-        listCall.getBody().setCallID(callID);
-        callTracer.fromResponse(request, response, listCall.getStatusCode());
-        return new ResponseEntity<>(listCall.getBody(), HttpStatus.OK);
+        }, request, response);
     }
 
     @ApiOperation(value = "Adds a header to all the subscribed APIs by an application")
@@ -210,63 +205,18 @@ public class SubscriptionController {
             @ApiResponse(code = 400, message = "Bad request")
     })
     @PutMapping(path="/{applicationID}/apis/header")
-    public ResponseEntity<SubscriptionList> addHeaderToAllApis(@PathVariable String applicationID, @RequestParam String header, HttpServletRequest request, HttpServletResponse response) {
-
-        String callID = UUID.randomUUID().toString();
-        callTracer.fromRequest(request, callID);
-
-        ResponseEntity<SubscriptionList> listCall = wso2Caller.searchSubscriptionsForApplication(applicationID, request);
-        if(!listCall.getStatusCode().is2xxSuccessful()) {
-            listCall.getBody().setCallID(callID);
-            return listCall;
-        }
-
-        for(Subscription subscription : listCall.getBody().getList()) {
-            //start stupid workaround
-            String apiName = restServiceUtils.getApiNameFromIdentifier(subscription.getApiIdentifier());
-            String version = restServiceUtils.getApiVersionFromIdentifier(subscription.getApiIdentifier());
-            //end stupid workaround
-            ResponseEntity<Version> detailsCall = wso2Caller.searchForVersion(apiName, 10, request);
-            if(!detailsCall.getStatusCode().is2xxSuccessful()) {
-                subscription.setCallError(true);
-                subscription.setCallErrorMessage("There was a problem getting your API, please try again.");
-                subscription.setCallID(callID);
-            } else {
-                for(Api api : detailsCall.getBody().getList()) {
-                    if(api.getVersion().equals(version)) {
-                        ResponseEntity<String> apiCall = wso2Caller.getApiDetails(api.getId(), request);
-                        if(apiCall.getStatusCode().is2xxSuccessful()) {
-                            JSONObject apiObject = new JSONObject(apiCall.getBody());
-                            if(apiObject.has("corsConfiguration")) {
-                                JSONObject corsConfiguration = apiObject.getJSONObject("corsConfiguration");
-                                JSONArray accessControlAllowHeaders = corsConfiguration.getJSONArray("accessControlAllowHeaders");
-                                boolean headerAlreadyExists = false;
-                                for(int i = 0; i < accessControlAllowHeaders.length(); i++){
-                                    if(accessControlAllowHeaders.getString(i).equalsIgnoreCase(header.trim()))
-                                        headerAlreadyExists = true;
-                                }
-                                if(!headerAlreadyExists) {
-                                    accessControlAllowHeaders.put(header.trim());
-                                }
-                            }
-                           ResponseEntity<Api> updateDefinitionCall = wso2Caller.updateDefinition(api.getId(), apiObject.toString(), request);
-                            updateDefinitionCall.getBody().setCallID(callID);
-                            if(!updateDefinitionCall.getStatusCode().is2xxSuccessful()) {
-                                subscription.setCallError(true);
-                                subscription.setCallErrorMessage("The api could not be updated");
-                            }
-                        } else {
-                            subscription.setCallError(true);
-                            subscription.setCallErrorMessage("There was a problem getting your API, please try again.");
-                            subscription.setCallID(callID);
-                        }
-                    }
-                }
+    public CompletableFuture<ResponseEntity<SubscriptionList>> addHeaderToAllApis(@PathVariable String applicationID, @RequestParam String header, HttpServletRequest request, HttpServletResponse response) {
+        return updateCorsOfAllApis("subscription.header.add", applicationID, corsConfiguration -> {
+            JSONArray accessControlAllowHeaders = corsConfiguration.getJSONArray("accessControlAllowHeaders");
+            boolean headerAlreadyExists = false;
+            for(int i = 0; i < accessControlAllowHeaders.length(); i++){
+                if(accessControlAllowHeaders.getString(i).equalsIgnoreCase(header.trim()))
+                    headerAlreadyExists = true;
             }
-        }
-        listCall.getBody().setCallID(callID);
-        callTracer.fromResponse(request, response, listCall.getStatusCode());
-        return new ResponseEntity<>(listCall.getBody(), HttpStatus.OK);
+            if(!headerAlreadyExists) {
+                accessControlAllowHeaders.put(header.trim());
+            }
+        }, request, response);
     }
 
     @ApiOperation(value = "Removes a header from all the subscribed APIs by an application")
@@ -275,61 +225,75 @@ public class SubscriptionController {
             @ApiResponse(code = 400, message = "Bad request")
     })
     @DeleteMapping(path="/{applicationID}/apis/header")
-    public ResponseEntity<SubscriptionList> removeHeaderToAllApis(@PathVariable String applicationID, @RequestParam String header, HttpServletRequest request, HttpServletResponse response) {
+    public CompletableFuture<ResponseEntity<SubscriptionList>> removeHeaderToAllApis(@PathVariable String applicationID, @RequestParam String header, HttpServletRequest request, HttpServletResponse response) {
+        return updateCorsOfAllApis("subscription.header.remove", applicationID, corsConfiguration -> {
+            JSONArray accessControlAllowHeaders = corsConfiguration.getJSONArray("accessControlAllowHeaders");
+            for(int i = accessControlAllowHeaders.length() - 1; i >= 0; i--) {
+                if(((String)accessControlAllowHeaders.get(i)).equalsIgnoreCase(header)) {
+                    accessControlAllowHeaders.remove(i);
+                }
+            }
+        }, request, response);
+    }
+
+    private CompletableFuture<ResponseEntity<SubscriptionList>> updateCorsOfAllApis(String operation, String applicationID, Consumer<JSONObject> corsMutation, HttpServletRequest request, HttpServletResponse response) {
 
         String callID = UUID.randomUUID().toString();
         callTracer.fromRequest(request, callID);
+        CallPriority.markBulk(request);
 
-        ResponseEntity<SubscriptionList> listCall = wso2Caller.searchSubscriptionsForApplication(applicationID, request);
-        if(!listCall.getStatusCode().is2xxSuccessful()) {
-            listCall.getBody().setCallID(callID);
-            return listCall;
-        }
+        return pipelineRunner.run(operation, pipelineRunner.bulkTimeoutMs(), request, () -> wso2AsyncCaller.searchSubscriptionsForApplication(applicationID, request).thenCompose(listCall -> {
+            if(!listCall.getStatusCode().is2xxSuccessful()) {
+                listCall.getBody().setCallID(callID);
+                return CompletableFuture.completedFuture(listCall);
+            }
 
-        for(Subscription subscription : listCall.getBody().getList()) {
-            //start stupid workaround
-            String apiName = restServiceUtils.getApiNameFromIdentifier(subscription.getApiIdentifier());
-            String version = restServiceUtils.getApiVersionFromIdentifier(subscription.getApiIdentifier());
-            //end stupid workaround
-            ResponseEntity<Version> detailsCall = wso2Caller.searchForVersion(apiName, 10, request);
-            if(!detailsCall.getStatusCode().is2xxSuccessful()) {
-                subscription.setCallError(true);
-                subscription.setCallErrorMessage("There was a problem getting your API, please try again.");
-                subscription.setCallID(callID);
-            } else {
-                for(Api api : detailsCall.getBody().getList()) {
-                    if(api.getVersion().equals(version)) {
-                        log.info(api.getVersion() + " - " + version + " - " + api.getId());
-                        ResponseEntity<String> apiCall = wso2Caller.getApiDetails(api.getId(), request);
-                        log.info(apiCall.getStatusCode().toString());
-                        if(apiCall.getStatusCode().is2xxSuccessful()) {
-                            JSONObject apiObject = new JSONObject(apiCall.getBody());
-                            if(apiObject.has("corsConfiguration")) {
-                                JSONObject corsConfiguration = apiObject.getJSONObject("corsConfiguration");
-                                JSONArray accessControlAllowHeaders = corsConfiguration.getJSONArray("accessControlAllowHeaders");
-                                for(int i=0; i<accessControlAllowHeaders.length(); i++) {
-                                    if(((String)accessControlAllowHeaders.get(i)).equalsIgnoreCase(header)) {
-                                        accessControlAllowHeaders.remove(i);
-                                    }
-                                }
-                            }
-                            ResponseEntity<Api> updateDefinitionCall = wso2Caller.updateDefinition(api.getId(), apiObject.toString(), request);
-                            updateDefinitionCall.getBody().setCallID(callID);
-                            if(!updateDefinitionCall.getStatusCode().is2xxSuccessful()) {
-                                subscription.setCallError(true);
-                                subscription.setCallErrorMessage("The api could not be updated");
-                            }
-                        } else {
-                            subscription.setCallError(true);
-                            subscription.setCallErrorMessage("There was a problem getting your API, please try again.");
-                            subscription.setCallID(callID);
-                        }
-                    }
-                }
+            List<Subscription> subscriptions = listCall.getBody().getList() == null ? new ArrayList<>() : listCall.getBody().getList();
+            return bulkFanOut.forEach(operation, subscriptions, subscription -> updateCorsOfSubscribedApi(subscription, corsMutation, callID, request).exceptionally(e -> {
+                setSubscriptionError(subscription, "The api could not be updated", callID);
+                return null;
+            })).thenApply(done -> {
+                listCall.getBody().setCallID(callID);
+                callTracer.fromResponse(request, response, listCall.getStatusCode());
+                return new ResponseEntity<>(listCall.getBody(), HttpStatus.OK);
+            });
+        }));
+    }
+
+    private CompletableFuture<Void> updateCorsOfSubscribedApi(Subscription subscription, Consumer<JSONObject> corsMutation, String callID, HttpServletRequest request) {
+        return wso2AsyncCaller.findApiId(subscription.getApiIdentifier(), request).thenCompose(findCall -> {
+            if(findCall.getStatusCode() == HttpStatus.NOT_FOUND) {
+                return CompletableFuture.completedFuture(null);
             }
-        }
-        listCall.getBody().setCallID(callID);
-        callTracer.fromResponse(request, response, listCall.getStatusCode());
-        return new ResponseEntity<>(listCall.getBody(), HttpStatus.OK);
+            if(!findCall.getStatusCode().is2xxSuccessful()) {
+                setSubscriptionError(subscription, "There was a problem getting your API, please try again.", callID);
+                return CompletableFuture.completedFuture(null);
+            }
+            return updateCorsOfApi(subscription, findCall.getBody(), corsMutation, callID, request);
+        });
+    }
+
+    private CompletableFuture<Void> updateCorsOfApi(Subscription subscription, String apiId, Consumer<JSONObject> corsMutation, String callID, HttpServletRequest request) {
+        return wso2AsyncCaller.getApiDetailsForUpdate(apiId, request).thenCompose(apiCall -> {
+            if(!apiCall.getStatusCode().is2xxSuccessful()) {
+                setSubscriptionError(subscription, "There was a problem getting your API, please try again.", callID);
+                return CompletableFuture.completedFuture(null);
+            }
+            JSONObject apiObject = new JSONObject(apiCall.getBody());
+            if(apiObject.has("corsConfiguration")) {
+                corsMutation.accept(apiObject.getJSONObject("corsConfiguration"));
+            }
+            return wso2AsyncCaller.updateDefinition(apiId, apiObject.toString(), request).thenAccept(updateDefinitionCall -> {
+                if(!updateDefinitionCall.getStatusCode().is2xxSuccessful()) {
+                    setSubscriptionError(subscription, "The api could not be updated", callID);
+                }
+            });
+        });
+    }
+
+    private void setSubscriptionError(Subscription subscription, String message, String callID) {
+        subscription.setCallError(true);
+        subscription.setCallErrorMessage(message);
+        subscription.setCallID(callID);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,62 @@
+package eu.europa.ec.digit.apigw.publisher.controller;
+
+import eu.europa.ec.digit.apigw.publisher.entity.CallResult;
+import eu.europa.ec.digit.apigw.publisher.utils.Constants;
+import eu.europa.ec.digit.apigw.publisher.utils.WSO2Failures;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The controllers replace the error of a failed WSO2 call by their own message and status,
+ * when that failure was a timeout or an unavailable WSO2 the response keeps saying so.
+ */
+@ControllerAdvice
+public class WSO2FailureAdvice implements ResponseBodyAdvice<Object> {
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        if(!(request instanceof ServletServerHttpRequest) || !(response instanceof ServletServerHttpResponse)) {
+            return body;
+        }
+        HttpServletRequest servletRequest = ((ServletServerHttpRequest) request).getServletRequest();
+        String failureMessage = (String) servletRequest.getAttribute(WSO2Failures.FAILURE_MESSAGE_ATTRIBUTE);
+        if(failureMessage == null || ((ServletServerHttpResponse) response).getServletResponse().getStatus() < 400) {
+            return body;
+        }
+
+        response.setStatusCode((HttpStatus) servletRequest.getAttribute(WSO2Failures.FAILURE_STATUS_ATTRIBUTE));
+        if(body instanceof CallResult) {
+            CallResult result = (CallResult) body;
+            String message = result.getCallErrorMessage();
+            result.setCallError(true);
+            if(message == null || message.equals(failureMessage)) {
+                result.setCallErrorMessage(failureMessage);
+            } else {
+                result.setCallErrorMessage(message + (message.endsWith(".") ? " " : ". ") + failureMessage);
+            }
+            if(result.getCallID() == null) {
+                result.setCallID((String) servletRequest.getAttribute(Constants.CALL_ID_ATTRIBUTE));
+            }
+        } else if(body instanceof String) {
+            return failureMessage;
+        }
+        return body;
+    }
+}
@@ -5,4 +5,7 @@ import lombok.Data;
 @Data
 public class AccessToken {
     private String access_token;
+    private String scope;
+    private String token_type;
+    private long expires_in;
 }
@@ -6,7 +6,7 @@ import lombok.Data;
 import java.util.List;
 
 @Data
-public class Api {
+public class Api implements CallResult {
 
     private String id;
     private String name;
@@ -5,7 +5,7 @@ import lombok.Data;
 import java.util.List;
 
 @Data
-public class Application {
+public class Application implements CallResult {
 
     private String applicationId;
     private String name;
@@ -3,7 +3,7 @@ package eu.europa.ec.digit.apigw.publisher.entity;
 import lombok.Data;
 
 @Data
-public class ApplicationKey {
+public class ApplicationKey implements CallResult {
 
     private String consumerSecret;
     private String consumerKey;
@@ -5,7 +5,7 @@ import lombok.Data;
 import java.util.List;
 
 @Data
-public class ApplicationList {
+public class ApplicationList implements CallResult {
 
     private int count;
     private List<Application>  list;
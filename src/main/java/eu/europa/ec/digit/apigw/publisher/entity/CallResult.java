@@ -0,0 +1,14 @@
+package eu.europa.ec.digit.apigw.publisher.entity;
+
+public interface CallResult {
+
+    void setCallError(boolean callError);
+
+    String getCallErrorMessage();
+
+    void setCallErrorMessage(String callErrorMessage);
+
+    String getCallID();
+
+    void setCallID(String callID);
+}
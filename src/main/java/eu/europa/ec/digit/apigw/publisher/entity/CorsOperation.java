@@ -0,0 +1,13 @@
+package eu.europa.ec.digit.apigw.publisher.entity;
+
+import lombok.Data;
+
+@Data
+public class CorsOperation {
+
+    public enum Type { ADD_ORIGIN, REMOVE_ORIGIN, ADD_HEADER, REMOVE_HEADER }
+
+    private String apiId;
+    private Type type;
+    private String value;
+}
@@ -0,0 +1,11 @@
+package eu.europa.ec.digit.apigw.publisher.entity;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class CorsOperationList {
+
+    private List<CorsOperation> operations;
+}
@@ -3,7 +3,7 @@ package eu.europa.ec.digit.apigw.publisher.entity;
 import lombok.Data;
 
 @Data
-public class Subscription {
+public class Subscription implements CallResult {
 
     private String subscriptionId;
     private String apiIdentifier;
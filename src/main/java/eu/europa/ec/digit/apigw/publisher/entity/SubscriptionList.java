@@ -5,7 +5,7 @@ import lombok.Data;
 import java.util.List;
 
 @Data
-public class SubscriptionList {
+public class SubscriptionList implements CallResult {
 
     private int count;
     private List<Subscription>  list;
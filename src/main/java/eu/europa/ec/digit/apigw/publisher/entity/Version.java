@@ -5,7 +5,7 @@ import lombok.Data;
 import java.util.List;
 
 @Data
-public class Version {
+public class Version implements CallResult {
 
     private int count;
     private List<Api>  list;
@@ -7,6 +7,7 @@ import brave.propagation.Propagation;
 import brave.propagation.TraceContext;
 import brave.http.HttpServerHandler;
 import brave.http.HttpTracing;
+import eu.europa.ec.digit.apigw.publisher.utils.CancellableRequest;
 import eu.europa.ec.digit.apigw.publisher.utils.Constants;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
@@ -45,11 +46,18 @@ public class CallTracer {
             span.tag("http.basic.user", userID);
         }
         request.setAttribute("SPAN", span);
+        request.setAttribute(Constants.CALL_ID_ATTRIBUTE, uuid);
     }
 
     public void fromResponse(HttpServletRequest request, HttpServletResponse response, HttpStatus status) {
         Span span = (Span) request.getAttribute("SPAN");
         span.tag("http.code", status.toString());
+        if(CancellableRequest.isCancelled(request)) {
+            /* The pipeline outlived its timeout, the response was written and may already serve another request */
+            span.tag("http.timeout", "true");
+            span.finish();
+            return;
+        }
         handler.handleSend(response, null, span);
     }
 
@@ -0,0 +1,180 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AIMD limit on the calls in flight to one WSO2 endpoint family. Every call that comes back fast enough raises the limit
+ * by 1/limit, so about one more call per round trip, every call that fails or takes much longer than the lowest recent
+ * latency of its operation cuts the limit by wso2.http.limit.backoff-ratio. Calls over the limit wait in a bounded queue,
+ * blocking and non blocking callers alike, and are refused when the queue is full or they waited too long.
+ * Interactive calls have their own queue, served first, and bulk calls never take the last slots of the limit,
+ * so a fan out over hundreds of APIs does not delay a single lookup.
+ */
+@Slf4j
+public class AdaptiveLimiter {
+
+    /* Latency under this increase over the baseline is noise, whatever the ratio */
+    private static final long LATENCY_SLACK_MS = 50;
+    /* How fast the baseline of an operation may grow again, per sample */
+    private static final double BASELINE_DRIFT = 1.01;
+
+    private final EndpointFamily family;
+    private final HttpClientProperties.Limit config;
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<CallPriority, Deque<CompletableFuture<Permit>>> queues = new EnumMap<>(CallPriority.class);
+    private final Map<OperationClass, Double> baselineMs = new EnumMap<>(OperationClass.class);
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseAt;
+
+    public AdaptiveLimiter(EndpointFamily family, HttpClientProperties.Limit config, ScheduledExecutorService scheduler) {
+        this.family = family;
+        this.config = config;
+        this.scheduler = scheduler;
+        this.limit = config.getInitialLimit();
+        for(CallPriority priority : CallPriority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+        }
+    }
+
+    public CompletableFuture<Permit> acquire(CallPriority priority) {
+        CompletableFuture<Permit> permit = new CompletableFuture<>();
+        Deque<CompletableFuture<Permit>> queue = queues.get(priority);
+        int maxQueue = priority == CallPriority.BULK ? config.getMaxBulkQueue() : config.getMaxQueue();
+        long queueTimeoutMs = priority == CallPriority.BULK ? config.getBulkQueueTimeoutMs() : config.getQueueTimeoutMs();
+        synchronized (this) {
+            if(!config.isEnabled() || (queue.isEmpty() && canStart(priority))) {
+                inFlight++;
+                permit.complete(new Permit());
+                return permit;
+            }
+            if(queue.size() >= maxQueue) {
+                permit.completeExceptionally(new WSO2UnavailableException("The WSO2 " + family.tagValue() + " is overloaded, "
+                        + queue.size() + " " + priority.tagValue() + " calls are already waiting"));
+                return permit;
+            }
+            queue.addLast(permit);
+        }
+        scheduler.schedule(() -> {
+            boolean expired;
+            synchronized (this) {
+                expired = queue.remove(permit);
+            }
+            if(expired) {
+                permit.completeExceptionally(new WSO2UnavailableException("The WSO2 " + family.tagValue() + " is overloaded, the call waited "
+                        + queueTimeoutMs + " ms without being sent"));
+            }
+        }, queueTimeoutMs, TimeUnit.MILLISECONDS);
+        return permit;
+    }
+
+    public synchronized int getLimit() {
+        return Math.max(1, (int) limit);
+    }
+
+    /* The slots bulk calls may fill, the rest of the limit stays free for interactive calls */
+    public synchronized int getBulkLimit() {
+        return Math.max(1, (int) (limit * config.getBulkShare()));
+    }
+
+    public synchronized int getQueueDepth(CallPriority priority) {
+        return queues.get(priority).size();
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+
+    private void release(Permit permit, OperationClass operation, long latencyMs, boolean failed) {
+        synchronized (this) {
+            inFlight--;
+            if(operation != null) {
+                adjustLimit(permit, operation, latencyMs, failed);
+            }
+        }
+        grantWaiting();
+    }
+
+    private void adjustLimit(Permit permit, OperationClass operation, long latencyMs, boolean failed) {
+        Double baseline = baselineMs.get(operation);
+        baselineMs.put(operation, baseline == null ? latencyMs : Math.min(latencyMs, baseline * BASELINE_DRIFT));
+        boolean slow = baseline != null && latencyMs > baseline * config.getLatencyTolerance() && latencyMs - baseline > LATENCY_SLACK_MS;
+
+        if(failed || slow) {
+            /* Calls sent before the last decrease saw the same congestion, they must not cut the limit again */
+            if(permit.acquiredAt > lastDecreaseAt) {
+                limit = Math.max(config.getMinLimit(), limit * config.getBackoffRatio());
+                lastDecreaseAt = System.nanoTime();
+                log.debug("Limit of the WSO2 {} lowered to {}", family.tagValue(), getLimit());
+            }
+        } else if(permit.inFlightAtStart * 2 >= limit) {
+            limit = Math.min(config.getMaxLimit(), limit + 1 / limit);
+        }
+    }
+
+    private boolean canStart(CallPriority priority) {
+        if(priority == CallPriority.BULK) {
+            return queues.get(CallPriority.INTERACTIVE).isEmpty() && inFlight < getBulkLimit();
+        }
+        return inFlight < getLimit();
+    }
+
+    private void grantWaiting() {
+        while(true) {
+            CompletableFuture<Permit> waiting;
+            Permit permit;
+            synchronized (this) {
+                CallPriority priority = !queues.get(CallPriority.INTERACTIVE).isEmpty() ? CallPriority.INTERACTIVE : CallPriority.BULK;
+                if(queues.get(priority).isEmpty() || !canStart(priority)) {
+                    return;
+                }
+                waiting = queues.get(priority).pollFirst();
+                inFlight++;
+                permit = new Permit();
+            }
+            /* Completing outside the lock, the waiting call starts its request right away */
+            if(!waiting.complete(permit)) {
+                synchronized (this) {
+                    inFlight--;
+                }
+            }
+        }
+    }
+
+    public class Permit {
+
+        private final long acquiredAt = System.nanoTime();
+        private final int inFlightAtStart;
+        private boolean released;
+
+        private Permit() {
+            this.inFlightAtStart = inFlight;
+        }
+
+        /* WSO2 answered, or failed, after latencyMs */
+        public void release(OperationClass operation, long latencyMs, boolean failed) {
+            if(!released) {
+                released = true;
+                AdaptiveLimiter.this.release(this, operation, latencyMs, failed);
+            }
+        }
+
+        /* The call never reached WSO2 or was abandoned, nothing to learn from it */
+        public void cancel() {
+            if(!released) {
+                released = true;
+                AdaptiveLimiter.this.release(this, null, 0, false);
+            }
+        }
+    }
+}
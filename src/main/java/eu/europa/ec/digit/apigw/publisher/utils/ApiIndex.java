@@ -0,0 +1,95 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import eu.europa.ec.digit.apigw.publisher.entity.Api;
+import eu.europa.ec.digit.apigw.publisher.entity.Version;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the identifier WSO2 gives an API in the store, provider-name-version, to the API ID the publisher works with.
+ * Filled from every API the callers get from the publisher, searches included, and kept in line with the creations
+ * and deletions made through this service, so the subscriptions of an application resolve without searching.
+ */
+@Component
+public class ApiIndex {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Counter hits;
+    private Counter misses;
+
+    private final Map<String, String> idsByIdentifier = new HashMap<>();
+    private final Map<String, String> identifiersById = new HashMap<>();
+
+    @PostConstruct
+    public void initMetrics() {
+        hits = meterRegistry.counter("wso2.api.index.lookups", "result", "hit");
+        misses = meterRegistry.counter("wso2.api.index.lookups", "result", "miss");
+        Gauge.builder("wso2.api.index.size", this, ApiIndex::size).register(meterRegistry);
+    }
+
+    /* The store writes the @ of a tenant provider as -AT- */
+    public static String identifier(String provider, String name, String version) {
+        return provider.replace("@", "-AT-") + "-" + name + "-" + version;
+    }
+
+    public void learn(Version version) {
+        if(version != null && version.getList() != null) {
+            version.getList().forEach(this::learn);
+        }
+    }
+
+    public synchronized void learn(Api api) {
+        if(api == null || api.getId() == null || api.getProvider() == null || api.getName() == null || api.getVersion() == null) {
+            return;
+        }
+        String identifier = identifier(api.getProvider(), api.getName(), api.getVersion());
+        String previousIdentifier = identifiersById.put(api.getId(), identifier);
+        if(previousIdentifier != null && !previousIdentifier.equals(identifier)) {
+            idsByIdentifier.remove(previousIdentifier);
+        }
+        idsByIdentifier.put(identifier, api.getId());
+    }
+
+    public synchronized void forget(String apiId) {
+        String identifier = identifiersById.remove(apiId);
+        if(identifier != null) {
+            idsByIdentifier.remove(identifier, apiId);
+        }
+    }
+
+    /* Put back as saved by the CatalogueSnapshotStore, what was learned since the start wins */
+    public synchronized void restore(String apiIdentifier, String apiId) {
+        if(!identifiersById.containsKey(apiId) && !idsByIdentifier.containsKey(apiIdentifier)) {
+            identifiersById.put(apiId, apiIdentifier);
+            idsByIdentifier.put(apiIdentifier, apiId);
+        }
+    }
+
+    public synchronized Map<String, String> export() {
+        return new HashMap<>(idsByIdentifier);
+    }
+
+    public synchronized String findId(String apiIdentifier) {
+        String apiId = idsByIdentifier.get(apiIdentifier);
+        (apiId == null ? misses : hits).increment();
+        return apiId;
+    }
+
+    /* No lookup counted, the identifier of an API ID is only used to match it with the subscriptions of the store */
+    public synchronized String findIdentifier(String apiId) {
+        return identifiersById.get(apiId);
+    }
+
+    public synchronized int size() {
+        return idsByIdentifier.size();
+    }
+}
@@ -0,0 +1,155 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the answers of the WSO2 publisher to API detail and API search calls for wso2.api.cache.ttl.seconds, keyed by
+ * the access token of the caller and the URL, so a caller only gets what WSO2 showed to it. The map is access ordered
+ * and bounded (LRU) like the TokenCache. A write through this service drops the entries of the API it touches and
+ * every search, see ApiMetadataCacheInterceptor. A caller sending Cache-Control: no-cache skips the cache, and so do the
+ * reads of a definition that is about to be changed and written back, as the invalidation only sees the writes made
+ * through this instance.
+ */
+@Component
+public class ApiMetadataCache {
+
+    /* Internal header the callers add when the incoming request asked to skip the cache */
+    public static final String BYPASS_HEADER = "X-Publisher-Cache-Bypass";
+
+    private static final String CACHE_NAME = "wso2.api.metadata";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${wso2.api.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${wso2.api.cache.max.size:1000}")
+    private int maxSize;
+
+    @Value("${wso2.api.cache.ttl.seconds:60}")
+    private long ttlSeconds;
+
+    private Counter hits;
+    private Counter misses;
+    private Counter puts;
+    private Counter evictions;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if(size() > maxSize) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /* Bumped by every invalidation, an answer read before one is not stored */
+    private long generation;
+
+    private final List<Consumer<String>> invalidationListeners = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    public void initMetrics() {
+        hits = meterRegistry.counter("cache.gets", "cache", CACHE_NAME, "result", "hit");
+        misses = meterRegistry.counter("cache.gets", "cache", CACHE_NAME, "result", "miss");
+        puts = meterRegistry.counter("cache.puts", "cache", CACHE_NAME);
+        evictions = meterRegistry.counter("cache.evictions", "cache", CACHE_NAME);
+        Gauge.builder("cache.size", this, ApiMetadataCache::size).tag("cache", CACHE_NAME).register(meterRegistry);
+    }
+
+    public static boolean isBypassRequested(HttpServletRequest request) {
+        String cacheControl = request == null ? null : request.getHeader(HttpHeaders.CACHE_CONTROL);
+        return cacheControl != null && cacheControl.toLowerCase().contains("no-cache");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if(entry != null && System.currentTimeMillis() >= entry.expiresAt) {
+            entries.remove(key);
+            evictions.increment();
+            entry = null;
+        }
+        (entry == null ? misses : hits).increment();
+        return entry;
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized void put(String key, String apiId, int status, HttpHeaders headers, byte[] body, long readGeneration) {
+        if(readGeneration != generation) {
+            return;
+        }
+        entries.put(key, new Entry(apiId, status, headers, body, System.currentTimeMillis() + ttlSeconds * 1000));
+        puts.increment();
+    }
+
+    /* Told of every write through this service, even with the cache disabled, like the CatalogueMirror */
+    public void addInvalidationListener(Consumer<String> listener) {
+        invalidationListeners.add(listener);
+    }
+
+    /* A null apiId drops the searches only, like after the creation of an API */
+    public void invalidate(String apiId) {
+        synchronized (this) {
+            generation++;
+            entries.values().removeIf(entry -> entry.apiId == null || entry.apiId.equals(apiId));
+        }
+        invalidationListeners.forEach(listener -> listener.accept(apiId));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public static class Entry {
+
+        private final String apiId;
+        private final int status;
+        private final HttpHeaders headers;
+        private final byte[] body;
+        private final long expiresAt;
+
+        Entry(String apiId, int status, HttpHeaders headers, byte[] body, long expiresAt) {
+            this.apiId = apiId;
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.AbstractClientHttpResponse;
+import org.springframework.http.client.AsyncClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.support.HttpRequestWrapper;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+/**
+ * Answers the API detail and API search calls of the WSO2 publisher from the ApiMetadataCache, and drops the entries a
+ * write makes stale once WSO2 answered it. Registered first, a cached answer does not count against the breaker or the
+ * limiter. Only 200 answers are stored. Writes are reported to the cache even when it is disabled.
+ */
+@SuppressWarnings("deprecation")
+public class ApiMetadataCacheInterceptor implements InterceptorChain.Interceptor {
+
+    private final ApiMetadataCache cache;
+    private final String apisPath;
+
+    public ApiMetadataCacheInterceptor(ApiMetadataCache cache, String publisherBaseUrl) {
+        this.cache = cache;
+        this.apisPath = URI.create(publisherBaseUrl).getPath();
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        boolean bypass = request.getHeaders().containsKey(ApiMetadataCache.BYPASS_HEADER);
+        HttpRequest outbound = bypass ? withoutBypass(request) : request;
+        String relativePath = relativePath(request.getURI());
+        if(relativePath == null || (!cache.isEnabled() && request.getMethod() == HttpMethod.GET)) {
+            return execution.execute(outbound, body);
+        }
+        if(request.getMethod() == HttpMethod.GET) {
+            String apiId = cachedApiId(relativePath);
+            if(apiId == null && !isSearch(request.getURI(), relativePath)) {
+                return execution.execute(outbound, body);
+            }
+            String key = key(request);
+            ApiMetadataCache.Entry cached = bypass ? null : cache.get(key);
+            if(cached != null) {
+                return new CachedResponse(cached.getStatus(), cached.getHeaders(), cached.getBody());
+            }
+            long generation = cache.getGeneration();
+            return store(key, apiId, generation, execution.execute(outbound, body));
+        }
+        try {
+            return execution.execute(outbound, body);
+        } finally {
+            cache.invalidate(writtenApiId(request.getURI(), relativePath));
+        }
+    }
+
+    @Override
+    public ListenableFuture<ClientHttpResponse> intercept(HttpRequest request, byte[] body, AsyncClientHttpRequestExecution execution) throws IOException {
+        boolean bypass = request.getHeaders().containsKey(ApiMetadataCache.BYPASS_HEADER);
+        HttpRequest outbound = bypass ? withoutBypass(request) : request;
+        String relativePath = relativePath(request.getURI());
+        if(relativePath == null || (!cache.isEnabled() && request.getMethod() == HttpMethod.GET)) {
+            return execution.executeAsync(outbound, body);
+        }
+        SettableListenableFuture<ClientHttpResponse> result = new SettableListenableFuture<>();
+        ListenableFuture<ClientHttpResponse> call;
+        if(request.getMethod() == HttpMethod.GET) {
+            String apiId = cachedApiId(relativePath);
+            if(apiId == null && !isSearch(request.getURI(), relativePath)) {
+                return execution.executeAsync(outbound, body);
+            }
+            String key = key(request);
+            ApiMetadataCache.Entry cached = bypass ? null : cache.get(key);
+            if(cached != null) {
+                result.set(new CachedResponse(cached.getStatus(), cached.getHeaders(), cached.getBody()));
+                return result;
+            }
+            long generation = cache.getGeneration();
+            call = execution.executeAsync(outbound, body);
+            call.addCallback(response -> {
+                try {
+                    result.set(store(key, apiId, generation, response));
+                } catch (IOException e) {
+                    result.setException(e);
+                }
+            }, result::setException);
+        } else {
+            String apiId = writtenApiId(request.getURI(), relativePath);
+            call = execution.executeAsync(outbound, body);
+            call.addCallback(response -> {
+                cache.invalidate(apiId);
+                if(!result.set(response)) {
+                    response.close();
+                }
+            }, e -> {
+                cache.invalidate(apiId);
+                result.setException(e);
+            });
+        }
+        result.addCallback(response -> {}, e -> {
+            if(result.isCancelled()) {
+                call.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private ClientHttpResponse store(String key, String apiId, long generation, ClientHttpResponse response) throws IOException {
+        if(response.getRawStatusCode() != HttpStatus.OK.value()) {
+            return response;
+        }
+        HttpHeaders headers = new HttpHeaders();
+        byte[] body;
+        try {
+            headers.putAll(response.getHeaders());
+            body = StreamUtils.copyToByteArray(response.getBody());
+        } finally {
+            response.close();
+        }
+        HttpHeaders readOnlyHeaders = HttpHeaders.readOnlyHttpHeaders(headers);
+        cache.put(key, apiId, HttpStatus.OK.value(), readOnlyHeaders, body, generation);
+        return new CachedResponse(HttpStatus.OK.value(), readOnlyHeaders, body);
+    }
+
+    /* The path below the publisher apis resource, null for any other call */
+    private String relativePath(URI uri) {
+        String path = uri.getPath();
+        return path != null && path.startsWith(apisPath) ? path.substring(apisPath.length()) : null;
+    }
+
+    private String cachedApiId(String relativePath) {
+        if(relativePath.length() > 1 && relativePath.indexOf('/', 1) < 0 && !isAction(relativePath)) {
+            return relativePath.substring(1);
+        }
+        return null;
+    }
+
+    private boolean isSearch(URI uri, String relativePath) {
+        return (relativePath.isEmpty() || relativePath.equals("/")) && uri.getQuery() != null;
+    }
+
+    /* The API a write changes: /{apiId}, /{apiId}/swagger, or the apiId parameter of /change-lifecycle and /copy-api */
+    private String writtenApiId(URI uri, String relativePath) {
+        if(isAction(relativePath)) {
+            return UriComponentsBuilder.fromUri(uri).build().getQueryParams().getFirst("apiId");
+        }
+        if(relativePath.length() > 1) {
+            int end = relativePath.indexOf('/', 1);
+            return end < 0 ? relativePath.substring(1) : relativePath.substring(1, end);
+        }
+        return null;
+    }
+
+    private boolean isAction(String relativePath) {
+        return relativePath.equals("/change-lifecycle") || relativePath.equals("/copy-api");
+    }
+
+    private String key(HttpRequest request) {
+        return request.getHeaders().getFirst(HttpHeaders.AUTHORIZATION) + " " + request.getURI();
+    }
+
+    private HttpRequest withoutBypass(HttpRequest request) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(request.getHeaders());
+        headers.remove(ApiMetadataCache.BYPASS_HEADER);
+        return new HttpRequestWrapper(request) {
+            @Override
+            public HttpHeaders getHeaders() {
+                return headers;
+            }
+        };
+    }
+
+    private static class CachedResponse extends AbstractClientHttpResponse {
+
+        private final int status;
+        private final HttpHeaders headers;
+        private final byte[] body;
+
+        private CachedResponse(int status, HttpHeaders headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        @Override
+        public int getRawStatusCode() {
+            return status;
+        }
+
+        @Override
+        public String getStatusText() {
+            return HttpStatus.valueOf(status).getReasonPhrase();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
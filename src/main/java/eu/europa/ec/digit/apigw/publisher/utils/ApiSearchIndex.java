@@ -0,0 +1,261 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import eu.europa.ec.digit.apigw.publisher.entity.Api;
+import eu.europa.ec.digit.apigw.publisher.entity.Version;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Answers the API searches from the CatalogueMirror snapshot, rebuilt each time the mirror replaces it. A name pattern
+ * keeps the meaning WSO2 gives it, a case insensitive match anywhere in the name where * stands for any characters,
+ * and is narrowed down with an index of the three letter sequences of the names before they are checked. A text query
+ * matches each of its words against the start of a word of the name, context, version, provider or description,
+ * through a sorted word index. Results are sorted by name and version so pages stay stable from one call to the next.
+ * Only used while the snapshot is younger than wso2.catalogue.search.max.age.seconds. Like the ContextTrie it is told of
+ * the APIs created, changed or deleted through this service until a snapshot has them, or one listed after they were
+ * learned does not. Only writes teach it, an API read with a caller's token may be one the mirror user cannot see. The
+ * snapshot is read by the mirror user and would show a caller the APIs that user can see, so it only answers where every
+ * caller sees the same catalogue as the mirror user, with wso2.catalogue.search.shared-visibility.enabled.
+ */
+@Component
+public class ApiSearchIndex {
+
+    static final String WORD_SEPARATORS = "[^\\p{L}\\p{N}]+";
+
+    @Autowired
+    private CatalogueMirror catalogueMirror;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${wso2.catalogue.search.enabled:true}")
+    private boolean enabled;
+
+    @Value("${wso2.catalogue.search.max.age.seconds:300}")
+    private long maxAgeSeconds;
+
+    @Value("${wso2.catalogue.search.shared-visibility.enabled:false}")
+    private boolean sharedVisibility;
+
+    private volatile Index index = new Index(new ArrayList<>());
+
+    /* The APIs of the last snapshot, and those learned from the callers kept over the rebuilds until a snapshot has them,
+       or one listed after they were learned does not */
+    private Map<String, Api> mirroredApis = new HashMap<>();
+    private final Map<String, Api> learnedApis = new HashMap<>();
+    private final Map<String, Long> learnedAt = new HashMap<>();
+
+    private Timer nameSearches;
+    private Timer textSearches;
+
+    @PostConstruct
+    public void init() {
+        nameSearches = meterRegistry.timer("wso2.catalogue.searches", "type", "name");
+        textSearches = meterRegistry.timer("wso2.catalogue.searches", "type", "text");
+        catalogueMirror.addSnapshotListener(this::rebuild);
+        catalogueMirror.addSyncListener(this::dropVanished);
+    }
+
+    /* A caller asking to bypass the caches gets the answer of WSO2 */
+    public boolean isAvailable(HttpServletRequest request) {
+        return enabled && sharedVisibility && catalogueMirror.isReady() && catalogueMirror.getSnapshotAgeMs() <= maxAgeSeconds * 1000
+                && !ApiMetadataCache.isBypassRequested(request);
+    }
+
+    /* Reindexes only when the API differs from what the index has */
+    public synchronized void learn(Api api) {
+        if(!enabled || !catalogueMirror.isRunning() || api == null || api.getId() == null || api.getName() == null) {
+            return;
+        }
+        Api summary = summary(api);
+        Api known = learnedApis.containsKey(api.getId()) ? learnedApis.get(api.getId()) : mirroredApis.get(api.getId());
+        if(!summary.equals(known)) {
+            learnedApis.put(api.getId(), summary);
+            reindex();
+        }
+        if(learnedApis.containsKey(api.getId())) {
+            learnedAt.put(api.getId(), System.currentTimeMillis());
+        }
+    }
+
+    public synchronized void forget(String apiId) {
+        learnedAt.remove(apiId);
+        boolean known = learnedApis.remove(apiId) != null;
+        known |= mirroredApis.remove(apiId) != null;
+        if(known) {
+            reindex();
+        }
+    }
+
+    public Version search(ApiSearchQuery query) {
+        return search(query.getApiName(), query.getText(), query.getOffset(), query.getLimit());
+    }
+
+    /* Either argument may be null, both given an API has to match both */
+    public Version search(String namePattern, String text, int offset, int limit) {
+        long start = System.nanoTime();
+        Index current = index;
+        BitSet matches = new BitSet();
+        matches.set(0, current.apis.size());
+        if(namePattern != null) {
+            matches.and(current.matchName(namePattern));
+        }
+        if(text != null) {
+            matches.and(current.matchText(text));
+        }
+        List<Api> page = new ArrayList<>();
+        int skipped = 0;
+        for(int i = matches.nextSetBit(0); i >= 0 && page.size() < limit; i = matches.nextSetBit(i + 1)) {
+            if(skipped++ >= offset) {
+                page.add(current.apis.get(i));
+            }
+        }
+        Version version = new Version();
+        version.setList(page);
+        version.setCount(page.size());
+        (text == null ? nameSearches : textSearches).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return version;
+    }
+
+    private synchronized void rebuild(Collection<CatalogueMirror.Entry> entries) {
+        Map<String, Api> apis = new HashMap<>();
+        entries.forEach(entry -> apis.put(entry.getApi().getId(), summary(entry.getApi())));
+        mirroredApis = apis;
+        learnedApis.keySet().removeAll(apis.keySet());
+        learnedAt.keySet().retainAll(learnedApis.keySet());
+        reindex();
+    }
+
+    /* Deleted in WSO2 directly, or never visible to the mirror user, it would otherwise be found until the restart */
+    private synchronized void dropVanished(long listedAt) {
+        List<String> vanished = learnedAt.entrySet().stream()
+                .filter(learned -> learned.getValue() < listedAt && catalogueMirror.getApi(learned.getKey()) == null)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        vanished.forEach(this::forget);
+    }
+
+    private void reindex() {
+        Map<String, Api> current = new HashMap<>(mirroredApis);
+        current.putAll(learnedApis);
+        List<Api> apis = current.values().stream()
+                .sorted(Comparator.comparing(Api::getName, Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER))
+                        .thenComparing(Api::getVersion, Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER)))
+                .collect(Collectors.toList());
+        index = new Index(apis);
+    }
+
+    /* What a WSO2 search returns of an API, a copy the callers may change */
+    private Api summary(Api api) {
+        Api summary = new Api();
+        summary.setId(api.getId());
+        summary.setName(api.getName());
+        summary.setDescription(api.getDescription());
+        summary.setContext(api.getContext());
+        summary.setVersion(api.getVersion());
+        summary.setProvider(api.getProvider());
+        summary.setStatus(api.getStatus());
+        return summary;
+    }
+
+    private static String lowerCase(String value) {
+        return value == null ? "" : value.toLowerCase();
+    }
+
+    private static class Index {
+
+        private final List<Api> apis;
+        private final String[] names;
+        private final Map<String, BitSet> trigrams = new HashMap<>();
+        private final NavigableMap<String, BitSet> words = new TreeMap<>();
+
+        Index(List<Api> apis) {
+            this.apis = apis;
+            this.names = new String[apis.size()];
+            for(int i = 0; i < apis.size(); i++) {
+                Api api = apis.get(i);
+                names[i] = lowerCase(api.getName());
+                for(int j = 0; j + 3 <= names[i].length(); j++) {
+                    trigrams.computeIfAbsent(names[i].substring(j, j + 3), key -> new BitSet()).set(i);
+                }
+                for(String field : new String[]{api.getName(), api.getContext(), api.getVersion(), api.getProvider(), api.getDescription()}) {
+                    for(String word : lowerCase(field).split(WORD_SEPARATORS)) {
+                        if(!word.isEmpty()) {
+                            words.computeIfAbsent(word, key -> new BitSet()).set(i);
+                        }
+                    }
+                }
+            }
+        }
+
+        BitSet matchName(String namePattern) {
+            List<String> parts = new ArrayList<>();
+            for(String part : lowerCase(namePattern).split("\\*+")) {
+                if(!part.isEmpty()) {
+                    parts.add(part);
+                }
+            }
+            BitSet candidates = new BitSet();
+            candidates.set(0, apis.size());
+            for(String part : parts) {
+                for(int j = 0; j + 3 <= part.length(); j++) {
+                    BitSet postings = trigrams.get(part.substring(j, j + 3));
+                    if(postings == null) {
+                        return new BitSet();
+                    }
+                    candidates.and(postings);
+                }
+            }
+            BitSet matches = new BitSet();
+            for(int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                if(containsInOrder(names[i], parts)) {
+                    matches.set(i);
+                }
+            }
+            return matches;
+        }
+
+        BitSet matchText(String text) {
+            BitSet matches = new BitSet();
+            matches.set(0, apis.size());
+            for(String word : lowerCase(text).split(WORD_SEPARATORS)) {
+                if(word.isEmpty()) {
+                    continue;
+                }
+                BitSet wordMatches = new BitSet();
+                words.subMap(word, true, word + Character.MAX_VALUE, false).values().forEach(wordMatches::or);
+                matches.and(wordMatches);
+            }
+            return matches;
+        }
+
+        private boolean containsInOrder(String name, List<String> parts) {
+            int from = 0;
+            for(String part : parts) {
+                int found = name.indexOf(part, from);
+                if(found < 0) {
+                    return false;
+                }
+                from = found + part.length();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import lombok.Getter;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * An API search, by name pattern or by text, as the controllers take it and as it is sent to WSO2.
+ */
+@Getter
+public class ApiSearchQuery {
+
+    private final String apiName;
+    private final String text;
+    private final int offset;
+    private final int limit;
+
+    public ApiSearchQuery(String apiName, String text, int offset, int limit) {
+        this.apiName = apiName;
+        this.text = text;
+        this.offset = Math.max(0, offset);
+        this.limit = limit <= 0 ? 25 : limit;
+    }
+
+    /* The reason the search parameters are refused, null when they can be used */
+    public static String getParametersError(Map<String, String> callParameters) {
+        /* WSO2 takes one search condition, the local index would answer what WSO2 cannot */
+        if(callParameters.containsKey(Constants.API_NAME_PARAMETER) && callParameters.containsKey(Constants.API_QUERY_TEXT)) {
+            return "Give either " + Constants.API_NAME_PARAMETER + " or " + Constants.API_QUERY_TEXT + ", not both.";
+        }
+        for(String parameter : new String[]{Constants.API_QUERY_LIMIT, Constants.API_QUERY_OFFSET}) {
+            String value = callParameters.get(parameter);
+            if(value != null && !value.matches("\\d{1,9}")) {
+                return "The " + parameter + " parameter must be a number of 0 or more.";
+            }
+        }
+        return null;
+    }
+
+    public static ApiSearchQuery of(Map<String, String> callParameters, int limit) {
+        return new ApiSearchQuery(callParameters.get(Constants.API_NAME_PARAMETER), callParameters.get(Constants.API_QUERY_TEXT),
+                Integer.parseInt(callParameters.getOrDefault(Constants.API_QUERY_OFFSET, "0")), limit);
+    }
+
+    /* WSO2 searches one attribute at a time, the words of a text are looked for in that order in the name. Encoded here
+       so a & or + of the caller stays in the query, and a : cannot pick another attribute */
+    public URI toUri(String endpoint) {
+        String query = "name:" + (apiName != null ? apiName : Arrays.stream(text.split(ApiSearchIndex.WORD_SEPARATORS))
+                .filter(word -> !word.isEmpty())
+                .collect(Collectors.joining("*")));
+        return UriComponentsBuilder.fromHttpUrl(endpoint)
+                .queryParam("query", UriUtils.encode(query, StandardCharsets.UTF_8))
+                .queryParam("limit", limit)
+                .queryParam("offset", offset)
+                .build(true)
+                .toUri();
+    }
+}
@@ -0,0 +1,22 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Lets the PipelineRunner give each pipeline request its own async timeout, spring.mvc.async.request-timeout is left
+ * for the other async responses.
+ */
+@Configuration
+public class AsyncConfiguration implements WebMvcConfigurer {
+
+    @Autowired
+    private PipelineRunner pipelineRunner;
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.registerDeferredResultInterceptors(pipelineRunner);
+    }
+}
@@ -1,76 +1,277 @@
 package eu.europa.ec.digit.apigw.publisher.utils;
 
 import eu.europa.ec.digit.apigw.publisher.entity.AccessToken;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @Slf4j
 @Component
 public class Authorization {
 
+    private static final String MULTI_SCOPE_TOKEN_ATTRIBUTE = "WSO2_MULTI_SCOPE_TOKEN";
+
     @Autowired
+    @Qualifier("tokenRestTemplate")
     RestTemplate restTemplate;
 
+    @Autowired
+    TokenCache tokenCache;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
     @Value("${wso2.api.publisher.authentication.endpoint}")
     private String wso2AuthenticationEndpoint;
 
-   public String getViewAccessToken(HttpServletRequest request) {
-       try {
-           HttpEntity<MultiValueMap<String, String>> theRequest = new HttpEntity<>(buildCallParameters(Constants.WSO2_VIEW_SCOPE), buildHeader(request));
-           ResponseEntity response = restTemplate.postForEntity(wso2AuthenticationEndpoint, theRequest , AccessToken.class);
-           if(response.getStatusCode().equals(HttpStatus.OK)) {
-               AccessToken theToken = (AccessToken) response.getBody();
-               return theToken.getAccess_token();
-           }
-       } catch (Exception e) {
-            log.error(e.getMessage(), e);
-       }
-       return null;
-   }
-
-   public String getCreateAccessToken(HttpServletRequest request) {
-       try {
-           HttpEntity<MultiValueMap<String, String>> theRequest = new HttpEntity<>(buildCallParameters(Constants.WSO2_CREATE_SCOPE), buildHeader(request));
-           ResponseEntity response = restTemplate.postForEntity(wso2AuthenticationEndpoint, theRequest , AccessToken.class);
-           if(response.getStatusCode().equals(HttpStatus.OK)) {
-               AccessToken theToken = (AccessToken) response.getBody();
-               return theToken.getAccess_token();
-           }
-       } catch (Exception e) {
-            log.error(e.getMessage(), e);
-       }
-       return null;
-   }
-
-   public String getPublishAccessToken(HttpServletRequest request) {
-       try {
-           HttpEntity<MultiValueMap<String, String>> theRequest = new HttpEntity<>(buildCallParameters(Constants.WSO2_PUBLISH_SCOPE), buildHeader(request));
-           ResponseEntity response = restTemplate.postForEntity(wso2AuthenticationEndpoint, theRequest , AccessToken.class);
-           if(response.getStatusCode().equals(HttpStatus.OK)) {
-               AccessToken theToken = (AccessToken) response.getBody();
-               return theToken.getAccess_token();
-           }
-       } catch (Exception e) {
-            log.error(e.getMessage(), e);
-       }
-       return null;
-   }
+    @Value("${wso2.token.multi.scope.enabled:false}")
+    private boolean multiScopeEnabled;
+
+    @Value("${wso2.token.refresh.enabled:true}")
+    private boolean tokenRefreshEnabled;
+
+    @Value("${wso2.token.refresh.ahead.seconds:30}")
+    private long tokenRefreshAheadSeconds;
+
+    @Value("${wso2.token.refresh.idle.seconds:300}")
+    private long tokenRefreshIdleSeconds;
+
+    @Value("${wso2.token.async.threads:4}")
+    private int tokenAsyncThreads;
+
+    /* Runs the token calls needed by the non blocking caller, so they never block an I/O thread */
+    private ExecutorService tokenExecutor;
+
+    /* One pending token call per credential and scope, concurrent callers wait on it */
+    private final ConcurrentMap<String, CompletableFuture<AccessToken>> inFlightTokenCalls = new ConcurrentHashMap<>();
+
+    /* Credential and scope pairs recently used, their tokens are renewed before they expire */
+    private final ConcurrentMap<String, HotToken> hotTokens = new ConcurrentHashMap<>();
+
+    private Counter tokenCalls;
+    private Counter collapsedTokenCalls;
+    private Counter refreshedTokens;
+    private Counter rejectedTokenCalls;
+
+    @PostConstruct
+    public void initMetrics() {
+        tokenCalls = meterRegistry.counter("wso2.token.calls");
+        collapsedTokenCalls = meterRegistry.counter("wso2.token.calls.collapsed");
+        refreshedTokens = meterRegistry.counter("wso2.token.refreshes");
+        rejectedTokenCalls = meterRegistry.counter("wso2.token.calls.rejected");
+        meterRegistry.gauge("wso2.token.calls.inflight", inFlightTokenCalls, ConcurrentMap::size);
+        meterRegistry.gauge("wso2.token.refresh.tracked", hotTokens, ConcurrentMap::size);
+        tokenExecutor = Executors.newFixedThreadPool(tokenAsyncThreads);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        tokenExecutor.shutdown();
+    }
+
+    public String getViewAccessToken(HttpServletRequest request) {
+        return getAccessToken(request, Constants.WSO2_VIEW_SCOPE);
+    }
+
+    public String getCreateAccessToken(HttpServletRequest request) {
+        return getAccessToken(request, Constants.WSO2_CREATE_SCOPE);
+    }
+
+    public String getPublishAccessToken(HttpServletRequest request) {
+        return getAccessToken(request, Constants.WSO2_PUBLISH_SCOPE);
+    }
 
     public String getSubscribeAccessToken(HttpServletRequest request) {
+        return getAccessToken(request, Constants.WSO2_SUBSCRIBE_SCOPE);
+    }
+
+    /* For the background jobs, which have no incoming request and send their own Basic credentials */
+    public String getViewAccessToken(String authorizationHeader) {
+        if(tokenCache.isRejected(tokenCache.credentialKey(authorizationHeader))) {
+            rejectedTokenCalls.increment();
+            return null;
+        }
+        return getAccessTokenValue(getAccessToken(authorizationHeader, Constants.WSO2_VIEW_SCOPE));
+    }
+
+    public CompletableFuture<String> getViewAccessTokenAsync(HttpServletRequest request) {
+        return getAccessTokenAsync(request, Constants.WSO2_VIEW_SCOPE);
+    }
+
+    public CompletableFuture<String> getCreateAccessTokenAsync(HttpServletRequest request) {
+        return getAccessTokenAsync(request, Constants.WSO2_CREATE_SCOPE);
+    }
+
+    public CompletableFuture<String> getPublishAccessTokenAsync(HttpServletRequest request) {
+        return getAccessTokenAsync(request, Constants.WSO2_PUBLISH_SCOPE);
+    }
+
+    public CompletableFuture<String> getSubscribeAccessTokenAsync(HttpServletRequest request) {
+        return getAccessTokenAsync(request, Constants.WSO2_SUBSCRIBE_SCOPE);
+    }
+
+    /* Served in the calling thread when the token is cached or refused, otherwise minted on the token executor */
+    private CompletableFuture<String> getAccessTokenAsync(HttpServletRequest request, String scope) {
+        String authorizationHeader = request.getHeader("Authorization");
+        if(authorizationHeader == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if(tokenCache.isRejected(tokenCache.credentialKey(authorizationHeader))) {
+            rejectedTokenCalls.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        AccessToken multiScopeToken = multiScopeEnabled ? (AccessToken) request.getAttribute(MULTI_SCOPE_TOKEN_ATTRIBUTE) : null;
+        if(multiScopeToken != null && isScopeGranted(multiScopeToken, scope)) {
+            return CompletableFuture.completedFuture(multiScopeToken.getAccess_token());
+        }
+        String tokenScope = multiScopeEnabled ? Constants.WSO2_ALL_SCOPES : scope;
+        String cacheKey = tokenCache.key(authorizationHeader, tokenScope);
+        AccessToken cachedToken = tokenCache.get(cacheKey);
+        if(cachedToken != null && isScopeGranted(cachedToken, scope)) {
+            trackUsage(cacheKey, authorizationHeader, tokenScope);
+            return CompletableFuture.completedFuture(cachedToken.getAccess_token());
+        }
+        return CompletableFuture.supplyAsync(() -> getAccessToken(request, scope), tokenExecutor);
+    }
+
+    private String getAccessToken(HttpServletRequest request, String scope) {
+        String authorizationHeader = request.getHeader("Authorization");
+        if(authorizationHeader == null) {
+            return null;
+        }
+        if(tokenCache.isRejected(tokenCache.credentialKey(authorizationHeader))) {
+            rejectedTokenCalls.increment();
+            return null;
+        }
+        if(multiScopeEnabled) {
+            AccessToken multiScopeToken = getMultiScopeToken(request, authorizationHeader);
+            if(multiScopeToken != null && isScopeGranted(multiScopeToken, scope)) {
+                return multiScopeToken.getAccess_token();
+            }
+        }
+        return getAccessTokenValue(getAccessToken(authorizationHeader, scope));
+    }
+
+    /* The token covering all the scopes is kept on the request so every step of the operation shares it */
+    private AccessToken getMultiScopeToken(HttpServletRequest request, String authorizationHeader) {
+        AccessToken multiScopeToken = (AccessToken) request.getAttribute(MULTI_SCOPE_TOKEN_ATTRIBUTE);
+        if(multiScopeToken == null) {
+            multiScopeToken = getAccessToken(authorizationHeader, Constants.WSO2_ALL_SCOPES);
+            if(multiScopeToken != null) {
+                request.setAttribute(MULTI_SCOPE_TOKEN_ATTRIBUTE, multiScopeToken);
+            }
+        }
+        return multiScopeToken;
+    }
+
+    private boolean isScopeGranted(AccessToken accessToken, String scope) {
+        return accessToken.getScope() == null || Arrays.asList(accessToken.getScope().split(" ")).contains(scope);
+    }
+
+    private AccessToken getAccessToken(String authorizationHeader, String scope) {
+        String cacheKey = tokenCache.key(authorizationHeader, scope);
+        trackUsage(cacheKey, authorizationHeader, scope);
+        AccessToken cachedToken = tokenCache.get(cacheKey);
+        if(cachedToken != null) {
+            return cachedToken;
+        }
+        return acquireAccessToken(cacheKey, authorizationHeader, scope, false);
+    }
+
+    private void trackUsage(String cacheKey, String authorizationHeader, String scope) {
+        if(tokenRefreshEnabled) {
+            hotTokens.computeIfAbsent(cacheKey, key -> new HotToken(authorizationHeader, scope)).touch();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${wso2.token.refresh.interval.ms:10000}")
+    public void refreshHotTokens() {
+        if(!tokenRefreshEnabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, HotToken>> iterator = hotTokens.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<String, HotToken> entry = iterator.next();
+            HotToken hotToken = entry.getValue();
+            if(now - hotToken.getLastUsed() > tokenRefreshIdleSeconds * 1000 || !tokenCache.contains(entry.getKey())) {
+                iterator.remove();
+                continue;
+            }
+            if(tokenCache.getRefreshAt(entry.getKey()) - now <= tokenRefreshAheadSeconds * 1000) {
+                refreshedTokens.increment();
+                acquireAccessToken(entry.getKey(), hotToken.getAuthorizationHeader(), hotToken.getScope(), true);
+            }
+        }
+    }
+
+    private AccessToken acquireAccessToken(String cacheKey, String authorizationHeader, String scope, boolean refresh) {
+        CompletableFuture<AccessToken> tokenCall = new CompletableFuture<>();
+        CompletableFuture<AccessToken> inFlightCall = inFlightTokenCalls.putIfAbsent(cacheKey, tokenCall);
+        if(inFlightCall != null) {
+            collapsedTokenCalls.increment();
+            return inFlightCall.join();
+        }
         try {
-            HttpEntity<MultiValueMap<String, String>> theRequest = new HttpEntity<>(buildCallParameters(Constants.WSO2_SUBSCRIBE_SCOPE), buildHeader(request));
-            ResponseEntity response = restTemplate.postForEntity(wso2AuthenticationEndpoint, theRequest , AccessToken.class);
+            /* Another caller may have filled the cache between our lookup and the registration of this call */
+            AccessToken cachedToken = refresh ? null : tokenCache.get(cacheKey);
+            if(cachedToken != null) {
+                tokenCall.complete(cachedToken);
+                return cachedToken;
+            }
+            AccessToken theToken = requestAccessToken(authorizationHeader, scope);
+            String credentialKey = tokenCache.credentialKey(authorizationHeader);
+            if(theToken != null) {
+                tokenCache.put(cacheKey, credentialKey, theToken);
+            } else if(tokenCache.isRejected(credentialKey)) {
+                /* A rejected credential loses the tokens of all its scopes, and they are no longer refreshed */
+                tokenCache.evictCredential(credentialKey);
+                hotTokens.values().removeIf(hotToken -> hotToken.getAuthorizationHeader().equals(authorizationHeader));
+            }
+            tokenCall.complete(theToken);
+            return theToken;
+        } finally {
+            tokenCall.complete(null);
+            inFlightTokenCalls.remove(cacheKey, tokenCall);
+        }
+    }
+
+    private AccessToken requestAccessToken(String authorizationHeader, String scope) {
+        try {
+            tokenCalls.increment();
+            HttpEntity<MultiValueMap<String, String>> theRequest = new HttpEntity<>(buildCallParameters(scope), buildHeader(authorizationHeader));
+            ResponseEntity<AccessToken> response = restTemplate.postForEntity(wso2AuthenticationEndpoint, theRequest , AccessToken.class);
             if(response.getStatusCode().equals(HttpStatus.OK)) {
-                AccessToken theToken = (AccessToken) response.getBody();
-                return theToken.getAccess_token();
+                return response.getBody();
+            }
+        } catch (HttpClientErrorException e) {
+            if(isCredentialRejected(e)) {
+                log.warn("Credentials rejected by the token endpoint, refusing them for a while: {}", e.getMessage());
+                tokenCache.reject(tokenCache.credentialKey(authorizationHeader));
+            } else {
+                log.error(e.getMessage(), e);
             }
         } catch (Exception e) {
             log.error(e.getMessage(), e);
@@ -78,6 +279,15 @@ public class Authorization {
         return null;
     }
 
+    private boolean isCredentialRejected(HttpClientErrorException e) {
+        return e.getStatusCode().equals(HttpStatus.UNAUTHORIZED) ||
+                (e.getStatusCode().equals(HttpStatus.BAD_REQUEST) && e.getResponseBodyAsString().contains("invalid_client"));
+    }
+
+    private String getAccessTokenValue(AccessToken accessToken) {
+        return accessToken == null ? null : accessToken.getAccess_token();
+    }
+
     private MultiValueMap<String, String> buildCallParameters(String scopeType) {
         MultiValueMap<String, String> callParameters = new LinkedMultiValueMap<>();
         callParameters.add("grant_type", Constants.WSO2_CLIENT_CREDENTIALS);
@@ -85,10 +295,38 @@ public class Authorization {
         return callParameters;
     }
 
-    private HttpHeaders buildHeader(HttpServletRequest request) {
+    private HttpHeaders buildHeader(String authorizationHeader) {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
-        headers.set("Authorization", request.getHeader("Authorization"));
+        headers.set("Authorization", authorizationHeader);
         return headers;
     }
+
+    private static class HotToken {
+
+        private final String authorizationHeader;
+        private final String scope;
+        private volatile long lastUsed;
+
+        HotToken(String authorizationHeader, String scope) {
+            this.authorizationHeader = authorizationHeader;
+            this.scope = scope;
+        }
+
+        void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+
+        String getAuthorizationHeader() {
+            return authorizationHeader;
+        }
+
+        String getScope() {
+            return scope;
+        }
+
+        long getLastUsed() {
+            return lastUsed;
+        }
+    }
 }
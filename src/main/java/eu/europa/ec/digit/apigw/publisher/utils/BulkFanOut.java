@@ -0,0 +1,74 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+/**
+ * Runs the per item pipelines of the bulk operations side by side, at most wso2.bulk.parallelism of them at a time
+ * for one request. The pipelines are futures completed from the HTTP client threads, so the bound is on the items
+ * in flight rather than on threads: each of the parallelism workers starts the next item when its previous one
+ * completes. The whole request is timed by the PipelineRunner, each item in publisher.bulk.item.duration.
+ */
+@Slf4j
+@Component
+public class BulkFanOut {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${wso2.bulk.parallelism:8}")
+    private int parallelism;
+
+    /* Completes once every item is done, a failed item is logged and does not stop the others */
+    public <T> CompletableFuture<Void> forEach(String operation, Collection<T> items, Function<T, CompletableFuture<?>> pipeline) {
+        Queue<T> queue = new ConcurrentLinkedQueue<>(items);
+        Timer itemTimer = meterRegistry.timer("publisher.bulk.item.duration", "operation", operation);
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for(int i = 0; i < Math.min(Math.max(1, parallelism), items.size()); i++) {
+            workers.add(work(queue, pipeline, itemTimer));
+        }
+        return CompletableFuture.allOf(workers.toArray(new CompletableFuture[0]));
+    }
+
+    /* Loops over the items completed at once, a cache hit or a local answer, instead of nesting a stage for each */
+    private <T> CompletableFuture<Void> work(Queue<T> queue, Function<T, CompletableFuture<?>> pipeline, Timer itemTimer) {
+        T item;
+        while((item = queue.poll()) != null) {
+            CompletableFuture<?> itemDone = run(item, pipeline, itemTimer);
+            if(!itemDone.isDone()) {
+                return itemDone.thenCompose(done -> work(queue, pipeline, itemTimer));
+            }
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private <T> CompletableFuture<?> run(T item, Function<T, CompletableFuture<?>> pipeline, Timer itemTimer) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        CompletableFuture<?> itemPipeline;
+        try {
+            itemPipeline = pipeline.apply(item);
+        } catch (RuntimeException e) {
+            itemPipeline = new CompletableFuture<>();
+            itemPipeline.completeExceptionally(e);
+        }
+        return itemPipeline.handle((result, e) -> {
+            sample.stop(itemTimer);
+            if(e != null) {
+                log.error(e.getMessage(), e);
+            }
+            return null;
+        });
+    }
+}
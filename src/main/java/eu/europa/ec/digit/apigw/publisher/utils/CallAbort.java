@@ -0,0 +1,66 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+
+/**
+ * Aborts a blocking WSO2 call from another thread, used by the HedgingInterceptor to stop the attempt that lost.
+ * The request factory of the WSO2 templates attaches each request it creates to the CallAbort of the current thread.
+ */
+public class CallAbort {
+
+    public interface Call<T> {
+        T execute() throws IOException;
+    }
+
+    private static final ThreadLocal<CallAbort> CURRENT = new ThreadLocal<>();
+
+    private HttpUriRequest request;
+    private boolean aborted;
+
+    public <T> T run(Call<T> call) throws IOException {
+        CallAbort previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return call.execute();
+        } finally {
+            if(previous != null) {
+                CURRENT.set(previous);
+            } else {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    public synchronized void abort() {
+        aborted = true;
+        if(request != null) {
+            request.abort();
+        }
+    }
+
+    public synchronized boolean isAborted() {
+        return aborted;
+    }
+
+    public static void attach(HttpUriRequest request) {
+        CallAbort current = CURRENT.get();
+        if(current != null) {
+            current.attachRequest(request);
+        }
+    }
+
+    /* Lets the inner interceptors tell a call aborted on purpose from a failing WSO2 */
+    public static boolean isCurrentAborted() {
+        CallAbort current = CURRENT.get();
+        return current != null && current.isAborted();
+    }
+
+    private synchronized void attachRequest(HttpUriRequest request) {
+        this.request = request;
+        if(aborted) {
+            request.abort();
+        }
+    }
+}
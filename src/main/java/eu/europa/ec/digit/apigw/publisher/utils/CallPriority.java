@@ -0,0 +1,27 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Interactive calls are served first by the limiter, bulk calls, the fan outs over every API of an application,
+ * only use the capacity left over, see wso2.http.limit.bulk-share.
+ */
+public enum CallPriority {
+    INTERACTIVE,
+    BULK;
+
+    /* Internal header carrying the priority from the callers to ConcurrencyLimitInterceptor, never sent to WSO2 */
+    public static final String HEADER = "X-Publisher-Call-Priority";
+
+    public static CallPriority of(HttpServletRequest request) {
+        return request != null && request.getAttribute(Constants.CALL_PRIORITY_ATTRIBUTE) == BULK ? BULK : INTERACTIVE;
+    }
+
+    public static void markBulk(HttpServletRequest request) {
+        request.setAttribute(Constants.CALL_PRIORITY_ATTRIBUTE, BULK);
+    }
+
+    public String tagValue() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,116 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import org.springframework.web.util.WebUtils;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The request the controllers and their pipelines are given, see CancellableRequestFilter. When a pipeline outlives the
+ * timeout the PipelineRunner gave it, its request is cancelled and the WSO2 calls it has not sent yet are not sent. The
+ * mark is kept on the wrapper, the container reuses the request itself once the timeout response is written.
+ *
+ * The stages still in flight may read the attributes and headers afterwards, to report a failure or get a token, so
+ * they are copied when the async processing completes, before the container reuses the request, and only the copies
+ * are used from then on.
+ */
+public class CancellableRequest extends HttpServletRequestWrapper {
+
+    private volatile boolean cancelled;
+    private boolean detached;
+    private Map<String, Object> attributes;
+    private Map<String, List<String>> headers;
+
+    public CancellableRequest(HttpServletRequest request) {
+        super(request);
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /* Called by the container thread once the response is complete, the request can still be read */
+    public synchronized void detach() {
+        if(detached) {
+            return;
+        }
+        attributes = new HashMap<>();
+        for(Enumeration<String> names = super.getAttributeNames(); names.hasMoreElements(); ) {
+            String name = names.nextElement();
+            attributes.put(name, super.getAttribute(name));
+        }
+        headers = new LinkedHashMap<>();
+        for(Enumeration<String> names = super.getHeaderNames(); names.hasMoreElements(); ) {
+            String name = names.nextElement();
+            headers.put(name.toLowerCase(), Collections.list(super.getHeaders(name)));
+        }
+        detached = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public static boolean isCancelled(ServletRequest request) {
+        CancellableRequest cancellable = request == null ? null : WebUtils.getNativeRequest(request, CancellableRequest.class);
+        return cancellable != null && cancellable.isCancelled();
+    }
+
+    @Override
+    public synchronized Object getAttribute(String name) {
+        return detached ? attributes.get(name) : super.getAttribute(name);
+    }
+
+    @Override
+    public synchronized Enumeration<String> getAttributeNames() {
+        return detached ? Collections.enumeration(new ArrayList<>(attributes.keySet())) : super.getAttributeNames();
+    }
+
+    @Override
+    public synchronized void setAttribute(String name, Object value) {
+        if(detached) {
+            attributes.put(name, value);
+        } else {
+            super.setAttribute(name, value);
+        }
+    }
+
+    @Override
+    public synchronized void removeAttribute(String name) {
+        if(detached) {
+            attributes.remove(name);
+        } else {
+            super.removeAttribute(name);
+        }
+    }
+
+    @Override
+    public synchronized String getHeader(String name) {
+        if(!detached) {
+            return super.getHeader(name);
+        }
+        List<String> values = headers.get(name.toLowerCase());
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public synchronized Enumeration<String> getHeaders(String name) {
+        if(!detached) {
+            return super.getHeaders(name);
+        }
+        return Collections.enumeration(headers.getOrDefault(name.toLowerCase(), Collections.emptyList()));
+    }
+
+    @Override
+    public synchronized Enumeration<String> getHeaderNames() {
+        return detached ? Collections.enumeration(new ArrayList<>(headers.keySet())) : super.getHeaderNames();
+    }
+}
@@ -0,0 +1,393 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import eu.europa.ec.digit.apigw.publisher.entity.Api;
+import eu.europa.ec.digit.apigw.publisher.entity.Subscription;
+import eu.europa.ec.digit.apigw.publisher.entity.Version;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.RestTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Local copy of the WSO2 publisher catalogue: id, name, context, version, provider, status and CORS configuration of
+ * every API, read with the credentials in wso2.catalogue.mirror.username and password. Every
+ * wso2.catalogue.mirror.interval.ms the /apis listing is paged through, and the details are only fetched again for
+ * the APIs that are new, whose listing changed, that were written through this service, or that are older than
+ * wso2.catalogue.mirror.details.max.age.seconds, with If-None-Match so WSO2 can answer 304. The snapshot is replaced
+ * as a whole once a sync ends, readers never see half of one. Runs on its own thread, a long first sync does not hold
+ * the scheduler of the token refresh and the health checks. Saved by the CatalogueSnapshotStore after each sync that
+ * changed something and at shutdown, along with the ApiIndex and the SubscriptionGraph, and restored from it at
+ * startup.
+ */
+@Slf4j
+@Component
+@SuppressWarnings("deprecation")
+public class CatalogueMirror {
+
+    @Autowired
+    private Authorization authorization;
+
+    @Autowired
+    private ApiIndex apiIndex;
+
+    @Autowired
+    private ApiMetadataCache apiMetadataCache;
+
+    @Autowired
+    private SubscriptionGraph subscriptionGraph;
+
+    @Autowired
+    private NodeBalancers nodeBalancers;
+
+    @Autowired
+    private CatalogueSnapshotStore snapshotStore;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    @Qualifier("publisherRestTemplate")
+    private RestTemplate publisherRestTemplate;
+
+    @Autowired
+    @Qualifier("publisherAsyncRestTemplate")
+    private AsyncRestTemplate publisherAsyncRestTemplate;
+
+    @Value("${wso2.catalogue.mirror.enabled:false}")
+    private boolean enabled;
+
+    @Value("${wso2.catalogue.mirror.username:}")
+    private String username;
+
+    @Value("${wso2.catalogue.mirror.password:}")
+    private String password;
+
+    @Value("${wso2.catalogue.mirror.interval.ms:60000}")
+    private long intervalMs;
+
+    @Value("${wso2.catalogue.mirror.page.size:100}")
+    private int pageSize;
+
+    @Value("${wso2.catalogue.mirror.details.max.age.seconds:600}")
+    private long detailsMaxAgeSeconds;
+
+    @Value("${wso2.catalogue.mirror.parallelism:4}")
+    private int parallelism;
+
+    private String wso2ApiPublisherEndpoint;
+    private String authorizationHeader;
+    private ScheduledExecutorService syncExecutor;
+
+    private volatile Map<String, Entry> snapshot = Collections.emptyMap();
+    private volatile long lastSyncAt;
+
+    /* Written through this service since their last fetch */
+    private final Set<String> dirtyIds = ConcurrentHashMap.newKeySet();
+
+    private final List<Consumer<Collection<Entry>>> snapshotListeners = new CopyOnWriteArrayList<>();
+    private final List<LongConsumer> syncListeners = new CopyOnWriteArrayList<>();
+
+    private Timer syncSuccesses;
+    private Timer syncFailures;
+    private Counter changedDetails;
+    private Counter unchangedDetails;
+    private Counter failedDetails;
+
+    @PostConstruct
+    public void init() {
+        wso2ApiPublisherEndpoint = nodeBalancers.get(EndpointFamily.PUBLISHER).getBaseUrl();
+        syncSuccesses = meterRegistry.timer("wso2.catalogue.sync.duration", "result", "success");
+        syncFailures = meterRegistry.timer("wso2.catalogue.sync.duration", "result", "failure");
+        changedDetails = meterRegistry.counter("wso2.catalogue.details.fetched", "result", "changed");
+        unchangedDetails = meterRegistry.counter("wso2.catalogue.details.fetched", "result", "unchanged");
+        failedDetails = meterRegistry.counter("wso2.catalogue.details.fetched", "result", "failed");
+        Gauge.builder("wso2.catalogue.snapshot.age", this, mirror -> mirror.isReady() ? mirror.getSnapshotAgeMs() / 1000.0 : Double.NaN)
+                .baseUnit("seconds").register(meterRegistry);
+        Gauge.builder("wso2.catalogue.snapshot.size", this, mirror -> mirror.snapshot.size()).register(meterRegistry);
+        restore();
+        if(!enabled) {
+            return;
+        }
+        if(username.isEmpty()) {
+            log.warn("The catalogue mirror is enabled without wso2.catalogue.mirror.username, it stays off");
+            return;
+        }
+        authorizationHeader = "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+        apiMetadataCache.addInvalidationListener(this::markDirty);
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "catalogue-mirror");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncExecutor.scheduleWithFixedDelay(this::sync, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if(syncExecutor != null) {
+            syncExecutor.shutdownNow();
+        }
+        save();
+    }
+
+    /* Starts warm from the saved snapshot, the first sync then only revalidates it, mostly with 304 answers */
+    private void restore() {
+        CatalogueSnapshotStore.Snapshot saved = snapshotStore.load();
+        if(saved == null) {
+            return;
+        }
+        saved.getApiIds().forEach(apiIndex::restore);
+        /* The applications keep their load time, those older than the graph TTL are read again on first use */
+        Map<String, List<Subscription>> subscriptionsByApplication = new HashMap<>();
+        saved.getSubscriptions().stream().filter(subscription -> subscription.getApplicationId() != null)
+                .forEach(subscription -> subscriptionsByApplication.computeIfAbsent(subscription.getApplicationId(), key -> new ArrayList<>()).add(subscription));
+        saved.getSubscriptionsLoadedAt().forEach((applicationId, at) ->
+                subscriptionGraph.replaceApplication(applicationId, subscriptionsByApplication.get(applicationId), at));
+        if(!enabled) {
+            return;
+        }
+        Map<String, Entry> restored = new HashMap<>();
+        saved.getApis().stream().filter(savedApi -> savedApi.getApi() != null && savedApi.getApi().getId() != null)
+                .forEach(savedApi -> restored.put(savedApi.getApi().getId(), new Entry(savedApi.getApi(), savedApi.getEtag(), savedApi.getFetchedAt())));
+        snapshot = Collections.unmodifiableMap(restored);
+        lastSyncAt = saved.getSyncedAt();
+    }
+
+    private synchronized void save() {
+        if(!snapshotStore.isEnabled()) {
+            return;
+        }
+        CatalogueSnapshotStore.Snapshot saved = new CatalogueSnapshotStore.Snapshot();
+        saved.setSyncedAt(lastSyncAt);
+        snapshot.values().forEach(entry -> {
+            CatalogueSnapshotStore.SavedApi savedApi = new CatalogueSnapshotStore.SavedApi();
+            savedApi.setApi(entry.getApi());
+            savedApi.setEtag(entry.getEtag());
+            savedApi.setFetchedAt(entry.getFetchedAt());
+            saved.getApis().add(savedApi);
+        });
+        saved.setApiIds(apiIndex.export());
+        saved.setSubscriptions(subscriptionGraph.exportSubscriptions());
+        saved.setSubscriptionsLoadedAt(subscriptionGraph.exportLoadedAt());
+        snapshotStore.save(saved);
+    }
+
+    /* Enabled, with credentials */
+    public boolean isRunning() {
+        return syncExecutor != null;
+    }
+
+    /* True once a sync succeeded, before that the snapshot is empty */
+    public boolean isReady() {
+        return lastSyncAt > 0;
+    }
+
+    public long getSnapshotAgeMs() {
+        return System.currentTimeMillis() - lastSyncAt;
+    }
+
+    public Collection<Entry> getEntries() {
+        return snapshot.values();
+    }
+
+    public Api getApi(String apiId) {
+        Entry entry = snapshot.get(apiId);
+        return entry == null ? null : entry.getApi();
+    }
+
+    /* Called at once with the current snapshot, then with each new one, on the thread of the mirror */
+    public void addSnapshotListener(Consumer<Collection<Entry>> listener) {
+        snapshotListeners.add(listener);
+        listener.accept(snapshot.values());
+    }
+
+    /* Called after each successful sync, changed or not, with the time its listing started: an API known from before then
+       and missing from the snapshot is gone from WSO2, or hidden from the mirror user */
+    public void addSyncListener(LongConsumer listener) {
+        syncListeners.add(listener);
+    }
+
+    /* A null apiId, the creation of an API, shows up in the next listing anyway */
+    private void markDirty(String apiId) {
+        if(apiId != null) {
+            dirtyIds.add(apiId);
+        }
+    }
+
+    synchronized void sync() {
+        long start = System.nanoTime();
+        try {
+            String accessToken = authorization.getViewAccessToken(authorizationHeader);
+            if(accessToken == null) {
+                throw new IllegalStateException("no access token for the catalogue mirror credentials");
+            }
+            Map<String, Entry> previous = snapshot;
+            long listedAt = System.currentTimeMillis();
+            Map<String, Api> listed = list(accessToken);
+            long now = System.currentTimeMillis();
+            Map<String, Entry> next = new ConcurrentHashMap<>();
+            List<Api> toFetch = new ArrayList<>();
+            for(Api summary : listed.values()) {
+                Entry known = previous.get(summary.getId());
+                boolean dirty = dirtyIds.remove(summary.getId());
+                if(known != null && !dirty && isSameListing(known.getApi(), summary) && now - known.getFetchedAt() < detailsMaxAgeSeconds * 1000) {
+                    next.put(summary.getId(), known);
+                } else {
+                    toFetch.add(summary);
+                }
+            }
+            fetchDetails(toFetch, previous, next, accessToken);
+            previous.keySet().stream().filter(apiId -> !listed.containsKey(apiId)).forEach(apiIndex::forget);
+            next.values().forEach(entry -> apiIndex.learn(entry.getApi()));
+            boolean changed = next.size() != previous.size() || next.entrySet().stream().anyMatch(entry -> previous.get(entry.getKey()) != entry.getValue());
+            snapshot = Collections.unmodifiableMap(next);
+            lastSyncAt = System.currentTimeMillis();
+            if(changed) {
+                snapshotListeners.forEach(listener -> listener.accept(next.values()));
+                save();
+            }
+            syncListeners.forEach(listener -> listener.accept(listedAt));
+            long durationNanos = System.nanoTime() - start;
+            syncSuccesses.record(durationNanos, TimeUnit.NANOSECONDS);
+            log.info("Catalogue mirror synced {} APIs, {} details fetched, in {} ms", next.size(), toFetch.size(), TimeUnit.NANOSECONDS.toMillis(durationNanos));
+        } catch (Exception e) {
+            syncFailures.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            log.warn("Catalogue mirror sync failed, the snapshot of {} APIs is kept: {}", snapshot.size(), e.getMessage());
+        }
+    }
+
+    /* Pages until a short page, or a page bringing nothing new in case WSO2 ignores the offset */
+    private Map<String, Api> list(String accessToken) {
+        Map<String, Api> listed = new LinkedHashMap<>();
+        for(int offset = 0; ; offset += pageSize) {
+            ResponseEntity<Version> page = publisherRestTemplate.exchange(wso2ApiPublisherEndpoint + "?limit=" + pageSize + "&offset=" + offset,
+                    HttpMethod.GET, new HttpEntity<>(buildHeaders(accessToken, null)), Version.class);
+            List<Api> apis = page.getBody() == null || page.getBody().getList() == null ? Collections.emptyList() : page.getBody().getList();
+            int sizeBefore = listed.size();
+            apis.stream().filter(api -> api.getId() != null).forEach(api -> listed.put(api.getId(), api));
+            if(apis.size() < pageSize || listed.size() == sizeBefore) {
+                return listed;
+            }
+        }
+    }
+
+    /* At most wso2.catalogue.mirror.parallelism fetches at a time, a failed one keeps what was known and is retried next sync */
+    private void fetchDetails(List<Api> summaries, Map<String, Entry> previous, Map<String, Entry> next, String accessToken) throws InterruptedException {
+        Semaphore permits = new Semaphore(parallelism);
+        AtomicInteger failures = new AtomicInteger();
+        for(Api summary : summaries) {
+            permits.acquire();
+            Entry known = previous.get(summary.getId());
+            String etag = known == null ? null : known.getEtag();
+            try {
+                publisherAsyncRestTemplate.exchange(wso2ApiPublisherEndpoint + "/" + summary.getId(), HttpMethod.GET,
+                        new HttpEntity<>(buildHeaders(accessToken, etag)), Api.class).completable().whenComplete((detailCall, e) -> {
+                    try {
+                        long fetchedAt = System.currentTimeMillis();
+                        if(e == null && detailCall.getStatusCode() == HttpStatus.NOT_MODIFIED && known != null) {
+                            unchangedDetails.increment();
+                            next.put(summary.getId(), new Entry(known.getApi(), etag, fetchedAt));
+                        } else if(e == null && detailCall.getStatusCode().is2xxSuccessful() && detailCall.getBody() != null) {
+                            changedDetails.increment();
+                            next.put(summary.getId(), new Entry(detailCall.getBody(), detailCall.getHeaders().getETag(), fetchedAt));
+                        } else {
+                            failures.incrementAndGet();
+                            failedDetails.increment();
+                            dirtyIds.add(summary.getId());
+                            next.put(summary.getId(), known != null ? known : new Entry(summary, null, 0));
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+        permits.acquire(parallelism);
+        permits.release(parallelism);
+        if(failures.get() > 0) {
+            log.warn("Catalogue mirror could not fetch the details of {} APIs, retried on the next sync", failures.get());
+        }
+    }
+
+    /* Fields the listing carries, a change of any of them means the details changed too */
+    private boolean isSameListing(Api known, Api summary) {
+        return Objects.equals(known.getName(), summary.getName()) && Objects.equals(known.getContext(), summary.getContext())
+                && Objects.equals(known.getVersion(), summary.getVersion()) && Objects.equals(known.getProvider(), summary.getProvider())
+                && Objects.equals(known.getStatus(), summary.getStatus());
+    }
+
+    private HttpHeaders buildHeaders(String accessToken, String etag) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Authorization", "Bearer " + accessToken);
+        headers.set(CallPriority.HEADER, CallPriority.BULK.name());
+        headers.set(ApiMetadataCache.BYPASS_HEADER, "true");
+        if(etag != null) {
+            headers.setIfNoneMatch(etag);
+        }
+        return headers;
+    }
+
+    /* An API of the snapshot, shared by every reader: not to be modified */
+    public static class Entry {
+
+        private final Api api;
+        private final String etag;
+        private final long fetchedAt;
+
+        Entry(Api api, String etag, long fetchedAt) {
+            this.api = api;
+            this.etag = etag;
+            this.fetchedAt = fetchedAt;
+        }
+
+        public Api getApi() {
+            return api;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public long getFetchedAt() {
+            return fetchedAt;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.europa.ec.digit.apigw.publisher.entity.Api;
+import eu.europa.ec.digit.apigw.publisher.entity.Subscription;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the catalogue on disk between two runs, in wso2.catalogue.snapshot.path: the APIs of the CatalogueMirror with
+ * their ETags, the entries of the ApiIndex and the edges of the SubscriptionGraph, as gzipped JSON. The file is written
+ * aside and renamed over the previous one, a crash while saving leaves the last complete snapshot. A missing or
+ * unreadable file, or one of another format version, is ignored and the service starts cold.
+ *
+ * The snapshot is not encrypted and holds the subscriptions of every application, so it is created readable by the
+ * service account only. The default path is relative to the working directory, point it to a private directory.
+ */
+@Slf4j
+@Component
+public class CatalogueSnapshotStore {
+
+    static final int FORMAT_VERSION = 1;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${wso2.catalogue.snapshot.enabled:false}")
+    private boolean enabled;
+
+    @Value("${wso2.catalogue.snapshot.path:catalogue-snapshot.json.gz}")
+    private String path;
+
+    private Timer saves;
+
+    /* The Spring mapper, without the null fields that make most of an API */
+    private ObjectMapper snapshotMapper;
+
+    @PostConstruct
+    public void init() {
+        saves = meterRegistry.timer("wso2.catalogue.snapshot.saves");
+        snapshotMapper = objectMapper.copy().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Snapshot load() {
+        Path file = Paths.get(path);
+        if(!enabled || !Files.isRegularFile(file)) {
+            return null;
+        }
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            Snapshot snapshot = snapshotMapper.readValue(in, Snapshot.class);
+            if(snapshot.getFormatVersion() != FORMAT_VERSION) {
+                log.warn("Catalogue snapshot {} has format {} instead of {}, ignored", file, snapshot.getFormatVersion(), FORMAT_VERSION);
+                return null;
+            }
+            log.info("Catalogue snapshot {} loaded: {} APIs, {} identifiers", file, snapshot.getApis().size(), snapshot.getApiIds().size());
+            return snapshot;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Catalogue snapshot {} could not be read, ignored: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    public synchronized void save(Snapshot snapshot) {
+        if(!enabled) {
+            return;
+        }
+        long start = System.nanoTime();
+        Path file = Paths.get(path).toAbsolutePath();
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.deleteIfExists(temporaryFile);
+            createPrivateFile(temporaryFile);
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temporaryFile))) {
+                snapshotMapper.writeValue(out, snapshot);
+            }
+            try {
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            saves.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Catalogue snapshot {} could not be written: {}", file, e.getMessage());
+        }
+    }
+
+    /* Owner read and write only where the file system has POSIX permissions, the rename keeps them */
+    private void createPrivateFile(Path file) throws IOException {
+        if(file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(file);
+        }
+    }
+
+    @Data
+    public static class Snapshot {
+
+        private int formatVersion = FORMAT_VERSION;
+        /* End of the mirror sync the APIs come from */
+        private long syncedAt;
+        private List<SavedApi> apis = new ArrayList<>();
+        /* ApiIndex, identifier to API ID */
+        private Map<String, String> apiIds = new HashMap<>();
+        /* SubscriptionGraph, the edges and when each application was read from the store */
+        private List<Subscription> subscriptions = new ArrayList<>();
+        private Map<String, Long> subscriptionsLoadedAt = new HashMap<>();
+    }
+
+    @Data
+    public static class SavedApi {
+
+        private Api api;
+        private String etag;
+        private long fetchedAt;
+    }
+}
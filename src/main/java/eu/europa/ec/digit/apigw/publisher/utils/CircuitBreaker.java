@@ -0,0 +1,152 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Count based breaker over the last wso2.http.circuit.window-size calls of an endpoint family. It opens when too many
+ * of them failed or were slow, slow meaning a share wso2.http.circuit.slow-call-ratio of the timeout of their operation
+ * class: a publish given a minute is not slow after ten seconds, refuses every call while open, and lets a few trial calls through once wso2.http.circuit.open-ms
+ * is over to decide between closing again or staying open.
+ */
+@Slf4j
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final EndpointFamily family;
+    private final HttpClientProperties.Circuit config;
+    private final HttpClientProperties.Timeout timeout;
+
+    private final boolean[] failedCalls;
+    private final boolean[] slowCalls;
+    private int position;
+    private int bufferedCalls;
+    private int failureCount;
+    private int slowCount;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+
+    public CircuitBreaker(EndpointFamily family, HttpClientProperties.Circuit config, HttpClientProperties.Timeout timeout) {
+        this.family = family;
+        this.config = config;
+        this.timeout = timeout;
+        this.failedCalls = new boolean[config.getWindowSize()];
+        this.slowCalls = new boolean[config.getWindowSize()];
+    }
+
+    public synchronized boolean tryAcquire() {
+        if(!config.isEnabled()) {
+            return true;
+        }
+        if(state == State.OPEN) {
+            if(System.currentTimeMillis() - openedAt < config.getOpenMs()) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            halfOpenPermits = config.getHalfOpenCalls();
+            halfOpenSuccesses = 0;
+            log.info("Circuit of the WSO2 {} is half open, sending {} trial calls", family.tagValue(), halfOpenPermits);
+        }
+        if(state == State.HALF_OPEN) {
+            if(halfOpenPermits == 0) {
+                return false;
+            }
+            halfOpenPermits--;
+        }
+        return true;
+    }
+
+    public synchronized void onResult(OperationClass operation, boolean failed, long durationMs) {
+        if(!config.isEnabled()) {
+            return;
+        }
+        boolean slow = durationMs >= timeout.getMs(operation) * config.getSlowCallRatio();
+        if(state == State.HALF_OPEN) {
+            if(failed || slow) {
+                open();
+            } else if(++halfOpenSuccesses >= config.getHalfOpenCalls()) {
+                close();
+            }
+            return;
+        }
+        if(state == State.OPEN) {
+            /* A call sent before the circuit opened */
+            return;
+        }
+
+        if(bufferedCalls == failedCalls.length) {
+            failureCount -= failedCalls[position] ? 1 : 0;
+            slowCount -= slowCalls[position] ? 1 : 0;
+        } else {
+            bufferedCalls++;
+        }
+        failedCalls[position] = failed;
+        slowCalls[position] = slow;
+        failureCount += failed ? 1 : 0;
+        slowCount += slow ? 1 : 0;
+        position = (position + 1) % failedCalls.length;
+
+        if(bufferedCalls >= config.getMinimumCalls()
+                && (failureRate() >= config.getFailureRateThreshold() || slowRate() >= config.getSlowRateThreshold())) {
+            open();
+        }
+    }
+
+    /* The call was abandoned before WSO2 answered, its trial permit goes back */
+    public synchronized void onCancelled() {
+        if(state == State.HALF_OPEN && halfOpenPermits < config.getHalfOpenCalls()) {
+            halfOpenPermits++;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getRetryInMs() {
+        return state == State.OPEN ? Math.max(0, config.getOpenMs() - (System.currentTimeMillis() - openedAt)) : 0;
+    }
+
+    public synchronized Map<String, Object> describe() {
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("state", state);
+        description.put("bufferedCalls", bufferedCalls);
+        description.put("failureRate", failureRate());
+        description.put("slowCallRate", slowRate());
+        description.put("retryInMs", getRetryInMs());
+        return description;
+    }
+
+    private int failureRate() {
+        return bufferedCalls == 0 ? 0 : failureCount * 100 / bufferedCalls;
+    }
+
+    private int slowRate() {
+        return bufferedCalls == 0 ? 0 : slowCount * 100 / bufferedCalls;
+    }
+
+    private void open() {
+        log.warn("Circuit of the WSO2 {} opened, failure rate {}%, slow call rate {}%", family.tagValue(), failureRate(), slowRate());
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void close() {
+        log.info("Circuit of the WSO2 {} closed", family.tagValue());
+        state = State.CLOSED;
+        position = 0;
+        bufferedCalls = 0;
+        failureCount = 0;
+        slowCount = 0;
+    }
+}
@@ -0,0 +1,51 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The breakers of the WSO2 publisher and store, shared by the blocking and non blocking templates of each family.
+ * Their state is published on /actuator/circuitbreakers and as the wso2.circuit.state gauge (0 closed, 1 open, 2 half open).
+ */
+@Component
+@Endpoint(id = "circuitbreakers")
+public class CircuitBreakers {
+
+    @Autowired
+    private HttpClientProperties httpClientProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<EndpointFamily, CircuitBreaker> circuitBreakers = new EnumMap<>(EndpointFamily.class);
+
+    @PostConstruct
+    public void init() {
+        for(EndpointFamily family : new EndpointFamily[] { EndpointFamily.PUBLISHER, EndpointFamily.STORE }) {
+            CircuitBreaker circuitBreaker = new CircuitBreaker(family, httpClientProperties.getCircuit(), httpClientProperties.getTimeout());
+            circuitBreakers.put(family, circuitBreaker);
+            Gauge.builder("wso2.circuit.state", circuitBreaker, breaker -> breaker.getState().ordinal())
+                    .tag("family", family.tagValue()).register(meterRegistry);
+        }
+    }
+
+    public CircuitBreaker get(EndpointFamily family) {
+        return circuitBreakers.get(family);
+    }
+
+    @ReadOperation
+    public Map<String, Object> circuitBreakers() {
+        Map<String, Object> states = new LinkedHashMap<>();
+        circuitBreakers.forEach((family, breaker) -> states.put(family.tagValue(), breaker.describe()));
+        return states;
+    }
+}
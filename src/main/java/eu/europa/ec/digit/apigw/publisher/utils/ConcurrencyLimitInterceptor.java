@@ -0,0 +1,166 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.AsyncClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.support.HttpRequestWrapper;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends each attempt of a WSO2 call through the adaptive limiter of its endpoint family, registered after the
+ * ResilientCallInterceptor so a call waiting to be retried does not hold a permit.
+ * 429, 503 and 504 answers count as overload like connection errors. The priority of the call comes from the internal
+ * CallPriority header, removed before the request is sent.
+ */
+@SuppressWarnings("deprecation")
+public class ConcurrencyLimitInterceptor implements InterceptorChain.Interceptor {
+
+    private final AdaptiveLimiter limiter;
+    private final MeterRegistry meterRegistry;
+    private final String family;
+
+    public ConcurrencyLimitInterceptor(EndpointFamily family, AdaptiveLimiter limiter, MeterRegistry meterRegistry) {
+        this.limiter = limiter;
+        this.meterRegistry = meterRegistry;
+        this.family = family.tagValue();
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        AdaptiveLimiter.Permit permit = await(limiter.acquire(priorityOf(request)));
+        OperationClass operation = OperationClass.of(request.getMethod(), request.getURI().getPath());
+        long start = System.nanoTime();
+        try {
+            ClientHttpResponse response = execution.execute(withoutPriority(request), body);
+            permit.release(operation, elapsedMs(start), isOverloaded(response.getRawStatusCode()));
+            return response;
+        } catch (IOException e) {
+            if(CallAbort.isCurrentAborted()) {
+                permit.cancel();
+            } else {
+                permit.release(operation, elapsedMs(start), true);
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            /* A failure on this side, WSO2 may never have seen the call, nothing to learn from it */
+            permit.cancel();
+            throw e;
+        }
+    }
+
+    @Override
+    public ListenableFuture<ClientHttpResponse> intercept(HttpRequest request, byte[] body, AsyncClientHttpRequestExecution execution) {
+        SettableListenableFuture<ClientHttpResponse> result = new SettableListenableFuture<>();
+        CompletableFuture<AdaptiveLimiter.Permit> acquire = limiter.acquire(priorityOf(request));
+        acquire.whenComplete((permit, e) -> {
+            if(e != null) {
+                if(!(e instanceof CancellationException)) {
+                    rejected();
+                    result.setException(e);
+                }
+                return;
+            }
+            if(result.isCancelled()) {
+                permit.cancel();
+                return;
+            }
+            OperationClass operation = OperationClass.of(request.getMethod(), request.getURI().getPath());
+            long start = System.nanoTime();
+            ListenableFuture<ClientHttpResponse> call;
+            try {
+                call = execution.executeAsync(withoutPriority(request), body);
+            } catch (IOException ioe) {
+                permit.release(operation, elapsedMs(start), true);
+                result.setException(ioe);
+                return;
+            } catch (RuntimeException re) {
+                permit.cancel();
+                result.setException(re);
+                return;
+            }
+            call.addCallback(response -> {
+                try {
+                    permit.release(operation, elapsedMs(start), isOverloaded(response.getRawStatusCode()));
+                } catch (IOException ioe) {
+                    permit.release(operation, elapsedMs(start), true);
+                }
+                if(!result.set(response)) {
+                    response.close();
+                }
+            }, failure -> {
+                if(result.isCancelled()) {
+                    permit.cancel();
+                } else {
+                    permit.release(operation, elapsedMs(start), true);
+                    result.setException(failure);
+                }
+            });
+            result.addCallback(response -> {}, failure -> {
+                if(result.isCancelled()) {
+                    call.cancel(true);
+                }
+            });
+        });
+        result.addCallback(response -> {}, failure -> {
+            if(result.isCancelled()) {
+                acquire.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    private CallPriority priorityOf(HttpRequest request) {
+        return CallPriority.BULK.name().equals(request.getHeaders().getFirst(CallPriority.HEADER)) ? CallPriority.BULK : CallPriority.INTERACTIVE;
+    }
+
+    /* A retry sends the same request again, so the header is dropped from a copy */
+    private HttpRequest withoutPriority(HttpRequest request) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(request.getHeaders());
+        headers.remove(CallPriority.HEADER);
+        return new HttpRequestWrapper(request) {
+            @Override
+            public HttpHeaders getHeaders() {
+                return headers;
+            }
+        };
+    }
+
+    private AdaptiveLimiter.Permit await(CompletableFuture<AdaptiveLimiter.Permit> acquire) throws IOException {
+        try {
+            return acquire.get();
+        } catch (InterruptedException e) {
+            if(!acquire.cancel(false) && !acquire.isCompletedExceptionally()) {
+                acquire.join().cancel();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a WSO2 call slot");
+        } catch (ExecutionException e) {
+            rejected();
+            throw (IOException) e.getCause();
+        }
+    }
+
+    private void rejected() {
+        meterRegistry.counter("wso2.limiter.rejected", "family", family).increment();
+    }
+
+    private boolean isOverloaded(int status) {
+        return status == 429 || status == 503 || status == 504;
+    }
+
+    private long elapsedMs(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
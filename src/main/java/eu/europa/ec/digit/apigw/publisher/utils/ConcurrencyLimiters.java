@@ -0,0 +1,55 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The adaptive limiters of the WSO2 publisher and store, shared by the blocking and non blocking templates of each family.
+ */
+@Component
+public class ConcurrencyLimiters {
+
+    @Autowired
+    private HttpClientProperties httpClientProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /* Expires the calls that waited too long in a queue */
+    private final ScheduledExecutorService queueTimeoutScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<EndpointFamily, AdaptiveLimiter> limiters = new EnumMap<>(EndpointFamily.class);
+
+    @PostConstruct
+    public void init() {
+        for(EndpointFamily family : new EndpointFamily[] { EndpointFamily.PUBLISHER, EndpointFamily.STORE }) {
+            AdaptiveLimiter limiter = new AdaptiveLimiter(family, httpClientProperties.getLimit(), queueTimeoutScheduler);
+            limiters.put(family, limiter);
+            Gauge.builder("wso2.limiter.limit", limiter, AdaptiveLimiter::getLimit).tag("family", family.tagValue()).register(meterRegistry);
+            Gauge.builder("wso2.limiter.inflight", limiter, AdaptiveLimiter::getInFlight).tag("family", family.tagValue()).register(meterRegistry);
+            Gauge.builder("wso2.limiter.limit.bulk", limiter, AdaptiveLimiter::getBulkLimit).tag("family", family.tagValue()).register(meterRegistry);
+            for(CallPriority priority : CallPriority.values()) {
+                Gauge.builder("wso2.limiter.queue", limiter, queued -> queued.getQueueDepth(priority))
+                        .tags("family", family.tagValue(), "priority", priority.tagValue()).register(meterRegistry);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        queueTimeoutScheduler.shutdownNow();
+    }
+
+    public AdaptiveLimiter get(EndpointFamily family) {
+        return limiters.get(family);
+    }
+}
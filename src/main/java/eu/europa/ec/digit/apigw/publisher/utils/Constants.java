@@ -7,11 +7,16 @@ public class Constants {
     public static final String API_NAME_PARAMETER = "api_name";
     public static final String API_ALLOWED_ORIGIN = "api_allowed_origins";
     public static final String API_QUERY_LIMIT = "limit";
+    public static final String API_QUERY_OFFSET = "offset";
+    public static final String API_QUERY_TEXT = "query";
     public static final String ZIPKIN_API_V2_URL = "/api/v2/spans";
+    public static final String CALL_ID_ATTRIBUTE = "CALL_ID";
+    public static final String CALL_PRIORITY_ATTRIBUTE = "CALL_PRIORITY";
     /* WSO2 Scopes */
     public static final String WSO2_VIEW_SCOPE = "apim:api_view";
     public static final String WSO2_CREATE_SCOPE = "apim:api_create";
     public static final String WSO2_PUBLISH_SCOPE = "apim:api_publish";
     public static final String WSO2_SUBSCRIBE_SCOPE =  "apim:subscribe";
+    public static final String WSO2_ALL_SCOPES = WSO2_VIEW_SCOPE + " " + WSO2_CREATE_SCOPE + " " + WSO2_PUBLISH_SCOPE + " " + WSO2_SUBSCRIBE_SCOPE;
     public static final String WSO2_CLIENT_CREDENTIALS = "client_credentials";
 }
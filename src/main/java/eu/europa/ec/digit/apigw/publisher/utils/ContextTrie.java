@@ -0,0 +1,219 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import eu.europa.ec.digit.apigw.publisher.entity.Api;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * The contexts of the catalogue as a trie of path segments, with the APIs registered at each node, and the APIs by
+ * name. Rebuilt from each CatalogueMirror snapshot, and told of the APIs created through this service until a snapshot
+ * has them, so the creations check names and contexts locally instead of searching WSO2. Contexts compare without case,
+ * the trailing version segment WSO2 may add is dropped. A context used by an API of another name is a conflict, a
+ * context under or above it as well with wso2.catalogue.conflicts.reject-nested, as both would route the same calls.
+ */
+@Component
+public class ContextTrie {
+
+    @Autowired
+    private CatalogueMirror catalogueMirror;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${wso2.catalogue.conflicts.enabled:true}")
+    private boolean enabled;
+
+    @Value("${wso2.catalogue.conflicts.max.age.seconds:300}")
+    private long maxAgeSeconds;
+
+    @Value("${wso2.catalogue.conflicts.reject-nested:false}")
+    private boolean rejectNested;
+
+    private Node root = new Node();
+    private Map<String, Api> apisById = new HashMap<>();
+    private Map<String, Map<String, Api>> apisByName = new HashMap<>();
+
+    /* Learned from the callers, kept over the rebuilds until a snapshot has them, or one listed after they were learned
+       does not */
+    private final Map<String, Api> learnedApis = new HashMap<>();
+    private final Map<String, Long> learnedAt = new HashMap<>();
+
+    private Counter nameConflicts;
+    private Counter contextConflicts;
+
+    @PostConstruct
+    public void init() {
+        nameConflicts = meterRegistry.counter("wso2.catalogue.conflicts", "type", "name");
+        contextConflicts = meterRegistry.counter("wso2.catalogue.conflicts", "type", "context");
+        catalogueMirror.addSnapshotListener(this::rebuild);
+        catalogueMirror.addSyncListener(this::dropVanished);
+    }
+
+    public boolean isAvailable() {
+        return enabled && catalogueMirror.isReady() && catalogueMirror.getSnapshotAgeMs() <= maxAgeSeconds * 1000;
+    }
+
+    public synchronized void learn(Api api) {
+        if(!enabled || !catalogueMirror.isRunning() || api == null || api.getId() == null || api.getName() == null || api.getContext() == null) {
+            return;
+        }
+        learnedApis.put(api.getId(), summary(api));
+        learnedAt.put(api.getId(), System.currentTimeMillis());
+        add(learnedApis.get(api.getId()));
+    }
+
+    public synchronized void forget(String apiId) {
+        learnedApis.remove(apiId);
+        learnedAt.remove(apiId);
+        remove(apiId);
+    }
+
+    /* An API in the way of a new one, as a copy the caller may change, null when there is none */
+    public synchronized Api findConflict(String apiName, String context) {
+        Map<String, Api> sameName = apisByName.get(apiName);
+        if(sameName != null) {
+            nameConflicts.increment();
+            return copy(sameName.values().iterator().next());
+        }
+        String[] segments = segments(context, null);
+        Node node = root;
+        for(String segment : segments) {
+            if(rejectNested) {
+                Api owner = otherOwner(node, apiName);
+                if(owner != null && node != root) {
+                    contextConflicts.increment();
+                    return copy(owner);
+                }
+            }
+            node = node.children.get(segment);
+            if(node == null) {
+                return null;
+            }
+        }
+        Api owner = rejectNested ? ownerBelow(node, apiName) : otherOwner(node, apiName);
+        if(owner != null) {
+            contextConflicts.increment();
+        }
+        return owner == null ? null : copy(owner);
+    }
+
+    private synchronized void rebuild(Collection<CatalogueMirror.Entry> entries) {
+        root = new Node();
+        apisById = new HashMap<>();
+        apisByName = new HashMap<>();
+        Set<String> mirroredIds = new HashSet<>();
+        for(CatalogueMirror.Entry entry : entries) {
+            mirroredIds.add(entry.getApi().getId());
+            add(entry.getApi());
+        }
+        learnedApis.keySet().removeAll(mirroredIds);
+        learnedAt.keySet().retainAll(learnedApis.keySet());
+        learnedApis.values().forEach(this::add);
+    }
+
+    /* Deleted in WSO2 directly, or never visible to the mirror user, it would otherwise conflict with every new API */
+    private synchronized void dropVanished(long listedAt) {
+        List<String> vanished = learnedAt.entrySet().stream()
+                .filter(learned -> learned.getValue() < listedAt && catalogueMirror.getApi(learned.getKey()) == null)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        vanished.forEach(this::forget);
+    }
+
+    private void add(Api api) {
+        if(api.getId() == null || api.getName() == null || api.getContext() == null) {
+            return;
+        }
+        remove(api.getId());
+        apisById.put(api.getId(), api);
+        apisByName.computeIfAbsent(api.getName(), key -> new HashMap<>()).put(api.getId(), api);
+        Node node = root;
+        for(String segment : segments(api.getContext(), api.getVersion())) {
+            node = node.children.computeIfAbsent(segment, key -> new Node());
+        }
+        node.owners.put(api.getId(), api);
+    }
+
+    private void remove(String apiId) {
+        Api api = apisById.remove(apiId);
+        if(api == null) {
+            return;
+        }
+        Map<String, Api> sameName = apisByName.get(api.getName());
+        sameName.remove(apiId);
+        if(sameName.isEmpty()) {
+            apisByName.remove(api.getName());
+        }
+        Node node = root;
+        for(String segment : segments(api.getContext(), api.getVersion())) {
+            node = node.children.get(segment);
+        }
+        node.owners.remove(apiId);
+    }
+
+    private Api otherOwner(Node node, String apiName) {
+        return node.owners.values().stream().filter(api -> !api.getName().equals(apiName)).findFirst().orElse(null);
+    }
+
+    private Api ownerBelow(Node start, String apiName) {
+        Deque<Node> nodes = new ArrayDeque<>();
+        nodes.push(start);
+        while(!nodes.isEmpty()) {
+            Node node = nodes.pop();
+            Api owner = otherOwner(node, apiName);
+            if(owner != null) {
+                return owner;
+            }
+            node.children.values().forEach(nodes::push);
+        }
+        return null;
+    }
+
+    private static String[] segments(String context, String version) {
+        String path = context.toLowerCase();
+        if(version != null && path.endsWith("/" + version.toLowerCase())) {
+            path = path.substring(0, path.length() - version.length() - 1);
+        }
+        if(path.endsWith("/{version}")) {
+            path = path.substring(0, path.length() - "/{version}".length());
+        }
+        return path.replaceAll("^/+|/+$", "").split("/+");
+    }
+
+    private static Api summary(Api api) {
+        Api summary = new Api();
+        summary.setId(api.getId());
+        summary.setName(api.getName());
+        summary.setContext(api.getContext());
+        summary.setVersion(api.getVersion());
+        summary.setProvider(api.getProvider());
+        summary.setStatus(api.getStatus());
+        return summary;
+    }
+
+    private static Api copy(Api api) {
+        Api copy = summary(api);
+        copy.setDescription(api.getDescription());
+        return copy;
+    }
+
+    private static class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+        private final Map<String, Api> owners = new HashMap<>();
+    }
+}
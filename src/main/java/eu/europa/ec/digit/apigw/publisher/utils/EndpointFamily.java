@@ -0,0 +1,11 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+public enum EndpointFamily {
+    PUBLISHER,
+    STORE,
+    TOKEN;
+
+    public String tagValue() {
+        return name().toLowerCase();
+    }
+}
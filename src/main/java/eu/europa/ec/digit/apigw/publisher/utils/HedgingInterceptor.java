@@ -0,0 +1,349 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.AsyncClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.support.HttpRequestWrapper;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hedges the GET calls of one WSO2 endpoint family spread over several nodes: when no answer came within the configured
+ * percentile of the recent read latencies, the call is sent again, the balancer giving it to the least busy node other
+ * than the one of the first attempt, and the first answer wins while the other attempt is aborted. No hedge is sent
+ * when that node is the only one available. Each read earns max-rate of a hedge, so no more than that
+ * share of the reads is sent twice. Registered after the ResilientCallInterceptor, a hedge takes its own limiter permit.
+ */
+@Slf4j
+@SuppressWarnings("deprecation")
+public class HedgingInterceptor implements InterceptorChain.Interceptor {
+
+    /* Latencies the delay is computed on, no hedge until MIN_SAMPLES reads were seen */
+    private static final int SAMPLES = 1000;
+    private static final int MIN_SAMPLES = 50;
+    private static final int REFRESH_EVERY = 50;
+
+    /* Hedges saved up while WSO2 answers in time */
+    private static final double MAX_BUDGET = 10;
+
+    private final NodeBalancer balancer;
+    private final HttpClientProperties.Hedge config;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService hedgeExecutor;
+    private final Counter sent;
+    private final Counter won;
+    private final Counter throttled;
+
+    private final long[] samples = new long[SAMPLES];
+    private int nextSample;
+    private int sampleCount;
+    private int sinceRefresh;
+    private volatile long delayMs = -1;
+    private double budget;
+    private int inFlight;
+
+    public HedgingInterceptor(EndpointFamily family, NodeBalancer balancer, HttpClientProperties.Hedge config,
+                              ScheduledExecutorService scheduler, ExecutorService hedgeExecutor, MeterRegistry meterRegistry) {
+        this.balancer = balancer;
+        this.config = config;
+        this.scheduler = scheduler;
+        this.hedgeExecutor = hedgeExecutor;
+        this.sent = meterRegistry.counter("wso2.hedge.sent", "family", family.tagValue());
+        this.won = meterRegistry.counter("wso2.hedge.won", "family", family.tagValue());
+        this.throttled = meterRegistry.counter("wso2.hedge.throttled", "family", family.tagValue());
+        Gauge.builder("wso2.hedge.delay", this, interceptor -> interceptor.delayMs)
+                .tag("family", family.tagValue()).register(meterRegistry);
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        if(!isHedgeable(request)) {
+            return execution.execute(request, body);
+        }
+        earn();
+        long delay = delayMs;
+        long start = System.nanoTime();
+        if(delay < 0) {
+            ClientHttpResponse response = execution.execute(request, body);
+            record(elapsedMs(start));
+            return response;
+        }
+
+        CompletableFuture<ClientHttpResponse> first = new CompletableFuture<>();
+        CompletableFuture<Void> hedgeDone = new CompletableFuture<>();
+        CallAbort primaryAbort = new CallAbort();
+        CallAbort hedgeAbort = new CallAbort();
+        AtomicReference<WSO2Node> primaryNode = new AtomicReference<>();
+        ScheduledFuture<?> timer = scheduler.schedule(() -> {
+            if(first.isDone() || !hasOtherNode(primaryNode) || !startHedge()) {
+                hedgeDone.complete(null);
+                return;
+            }
+            try {
+                hedgeExecutor.execute(() -> {
+                    long hedgeStart = System.nanoTime();
+                    try {
+                        ClientHttpResponse response = hedgeAbort.run(() -> execution.execute(new Attempt(request, primaryNode, true), body));
+                        if(first.complete(response)) {
+                            won.increment();
+                            record(elapsedMs(hedgeStart));
+                            primaryAbort.abort();
+                        } else {
+                            response.close();
+                        }
+                    } catch (IOException e) {
+                        log.debug("Hedge of {} {} failed: {}", request.getMethod(), request.getURI().getPath(), e.getMessage());
+                    } finally {
+                        endHedge();
+                        hedgeDone.complete(null);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                endHedge();
+                hedgeDone.complete(null);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+        ClientHttpResponse response;
+        try {
+            response = primaryAbort.run(() -> execution.execute(new Attempt(request, primaryNode, false), body));
+        } catch (IOException e) {
+            if(timer.cancel(false)) {
+                throw e;
+            }
+            /* Either the hedge won and aborted this attempt, or it is the last chance of the call */
+            await(hedgeDone);
+            if(first.isDone()) {
+                return first.join();
+            }
+            throw e;
+        }
+        timer.cancel(false);
+        if(first.complete(response)) {
+            hedgeAbort.abort();
+            record(elapsedMs(start));
+            return response;
+        }
+        response.close();
+        return first.join();
+    }
+
+    @Override
+    public ListenableFuture<ClientHttpResponse> intercept(HttpRequest request, byte[] body, AsyncClientHttpRequestExecution execution) throws IOException {
+        if(!isHedgeable(request)) {
+            return execution.executeAsync(request, body);
+        }
+        earn();
+        long delay = delayMs;
+        AsyncHedge hedge = new AsyncHedge(request, body, execution);
+        hedge.send(false);
+        if(delay < 0) {
+            hedge.attemptEnded(null);
+            return hedge.result;
+        }
+        hedge.timer = scheduler.schedule(() -> {
+            if(hedge.result.isDone() || hedge.failure != null || !hasOtherNode(hedge.primaryNode) || !startHedge()) {
+                hedge.attemptEnded(null);
+                return;
+            }
+            try {
+                hedge.send(true);
+            } catch (IOException e) {
+                endHedge();
+                hedge.attemptEnded(e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return hedge.result;
+    }
+
+    /* Hedging is only worth it with another node to send the call to */
+    private boolean isHedgeable(HttpRequest request) {
+        return config.isEnabled() && (request.getMethod() == HttpMethod.GET || request.getMethod() == HttpMethod.HEAD)
+                && balancer.countAvailable() > 1;
+    }
+
+    /* Not while the first attempt still waits for a limiter permit, the hedge would only queue behind it */
+    private boolean hasOtherNode(AtomicReference<WSO2Node> primaryNode) {
+        WSO2Node node = primaryNode.get();
+        return node != null && balancer.isAvailableBesides(node);
+    }
+
+    private synchronized void earn() {
+        budget = Math.min(MAX_BUDGET, budget + config.getMaxRate());
+    }
+
+    private synchronized boolean startHedge() {
+        if(budget < 1 || inFlight >= config.getMaxInFlight()) {
+            throttled.increment();
+            return false;
+        }
+        budget--;
+        inFlight++;
+        sent.increment();
+        return true;
+    }
+
+    private synchronized void endHedge() {
+        inFlight--;
+    }
+
+    private synchronized void record(long latencyMs) {
+        samples[nextSample] = latencyMs;
+        nextSample = (nextSample + 1) % SAMPLES;
+        sampleCount = Math.min(sampleCount + 1, SAMPLES);
+        if(++sinceRefresh < REFRESH_EVERY || sampleCount < MIN_SAMPLES) {
+            return;
+        }
+        sinceRefresh = 0;
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(config.getDelayPercentile() / 100 * sampleCount) - 1;
+        delayMs = Math.max(config.getMinDelayMs(), sorted[Math.max(0, Math.min(index, sampleCount - 1))]);
+    }
+
+    private void await(CompletableFuture<Void> hedgeDone) throws IOException {
+        try {
+            hedgeDone.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a hedged WSO2 call");
+        } catch (ExecutionException e) {
+            /* Never completed exceptionally */
+        }
+    }
+
+    private long elapsedMs(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /* One non blocking call, answered by the first of its attempts that gets a response */
+    private class AsyncHedge {
+
+        private final HttpRequest request;
+        private final byte[] body;
+        private final AsyncClientHttpRequestExecution execution;
+        private final SettableListenableFuture<ClientHttpResponse> result = new SettableListenableFuture<>();
+        private final List<ListenableFuture<ClientHttpResponse>> attempts = new CopyOnWriteArrayList<>();
+        private final AtomicReference<WSO2Node> primaryNode = new AtomicReference<>();
+
+        /* The primary attempt and the hedge that may still be sent */
+        private final AtomicInteger pending = new AtomicInteger(2);
+        private volatile Throwable failure;
+        private volatile ScheduledFuture<?> timer;
+
+        private AsyncHedge(HttpRequest request, byte[] body, AsyncClientHttpRequestExecution execution) {
+            this.request = request;
+            this.body = body;
+            this.execution = execution;
+            result.addCallback(response -> {}, e -> {
+                if(result.isCancelled()) {
+                    cancelTimer();
+                    attempts.forEach(attempt -> attempt.cancel(true));
+                }
+            });
+        }
+
+        private void send(boolean hedge) throws IOException {
+            long start = System.nanoTime();
+            ListenableFuture<ClientHttpResponse> attempt = execution.executeAsync(new Attempt(request, primaryNode, hedge), body);
+            attempts.add(attempt);
+            attempt.addCallback(response -> {
+                if(hedge) {
+                    endHedge();
+                }
+                if(result.set(response)) {
+                    record(elapsedMs(start));
+                    if(hedge) {
+                        won.increment();
+                    }
+                    cancelTimer();
+                    attempts.forEach(other -> other.cancel(true));
+                } else {
+                    response.close();
+                }
+            }, e -> {
+                if(hedge) {
+                    endHedge();
+                }
+                /* A failed primary is left to the ResilientCallInterceptor rather than hedged */
+                if(!hedge && cancelTimer()) {
+                    pending.decrementAndGet();
+                }
+                attemptEnded(e);
+            });
+            if(result.isDone()) {
+                attempt.cancel(true);
+            }
+        }
+
+        private void attemptEnded(Throwable e) {
+            if(e != null && failure == null) {
+                failure = e;
+            }
+            if(pending.decrementAndGet() == 0 && failure != null) {
+                result.setException(failure);
+            }
+        }
+
+        private boolean cancelTimer() {
+            ScheduledFuture<?> scheduled = timer;
+            return scheduled != null && scheduled.cancel(false);
+        }
+    }
+
+    /* The request of one attempt, through which the LoadBalancingInterceptor learns or avoids the node of the first one */
+    static class Attempt extends HttpRequestWrapper {
+
+        private final AtomicReference<WSO2Node> primaryNode;
+        private final boolean hedge;
+
+        private Attempt(HttpRequest request, AtomicReference<WSO2Node> primaryNode, boolean hedge) {
+            super(request);
+            this.primaryNode = primaryNode;
+            this.hedge = hedge;
+        }
+
+        /* The interceptors registered after this one may wrap the request again */
+        static Attempt of(HttpRequest request) {
+            for(HttpRequest current = request; current instanceof HttpRequestWrapper; current = ((HttpRequestWrapper) current).getRequest()) {
+                if(current instanceof Attempt) {
+                    return (Attempt) current;
+                }
+            }
+            return null;
+        }
+
+        boolean isHedge() {
+            return hedge;
+        }
+
+        WSO2Node getPrimaryNode() {
+            return primaryNode.get();
+        }
+
+        void setPrimaryNode(WSO2Node node) {
+            primaryNode.set(node);
+        }
+    }
+}
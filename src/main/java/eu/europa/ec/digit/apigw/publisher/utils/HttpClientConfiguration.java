@@ -0,0 +1,330 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.RestTemplate;
+
+import javax.annotation.PreDestroy;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@Slf4j
+@Configuration
+public class HttpClientConfiguration {
+
+    @Autowired
+    private HttpClientProperties httpClientProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private CircuitBreakers circuitBreakers;
+
+    @Autowired
+    private ConcurrencyLimiters concurrencyLimiters;
+
+    @Autowired
+    private NodeBalancers nodeBalancers;
+
+    @Autowired
+    private ApiMetadataCache apiMetadataCache;
+
+    /* Waits the backoff of the non blocking retries and the delay of the hedges */
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    /* Runs the hedges of the blocking calls, their number is capped by wso2.http.hedge.max-in-flight */
+    private final ExecutorService hedgeExecutor = Executors.newCachedThreadPool();
+
+    /* Shared by the blocking and non blocking templates of a family, like its breaker and limiter */
+    private final Map<EndpointFamily, HedgingInterceptor> hedgingInterceptors = new EnumMap<>(EndpointFamily.class);
+
+    /* The non blocking pools have no eviction thread of their own, see evictAsyncConnections */
+    private final Map<PoolingNHttpClientConnectionManager, Long> asyncConnectionManagers = new ConcurrentHashMap<>();
+
+    /* The blocking and non blocking clients, their pools and I/O reactor threads are only released when closed */
+    private final List<Closeable> httpClients = new CopyOnWriteArrayList<>();
+
+    @Bean
+    @Primary
+    public RestTemplate getRestTemplate() throws KeyManagementException, NoSuchAlgorithmException {
+        return buildRestTemplate("default", httpClientProperties.getPool(), false);
+    }
+
+    @Bean
+    public RestTemplate publisherRestTemplate() throws KeyManagementException, NoSuchAlgorithmException {
+        RestTemplate restTemplate = buildRestTemplate(EndpointFamily.PUBLISHER.tagValue(), httpClientProperties.getPool(EndpointFamily.PUBLISHER), true);
+        restTemplate.getInterceptors().add(buildInterceptorChain(EndpointFamily.PUBLISHER));
+        return restTemplate;
+    }
+
+    @Bean
+    public RestTemplate storeRestTemplate() throws KeyManagementException, NoSuchAlgorithmException {
+        RestTemplate restTemplate = buildRestTemplate(EndpointFamily.STORE.tagValue(), httpClientProperties.getPool(EndpointFamily.STORE), true);
+        restTemplate.getInterceptors().add(buildInterceptorChain(EndpointFamily.STORE));
+        return restTemplate;
+    }
+
+    @Bean
+    public RestTemplate tokenRestTemplate() throws KeyManagementException, NoSuchAlgorithmException {
+        return buildRestTemplate(EndpointFamily.TOKEN.tagValue(), httpClientProperties.getPool(EndpointFamily.TOKEN), false);
+    }
+
+    @Bean
+    public RestTemplate healthCheckRestTemplate() throws KeyManagementException, NoSuchAlgorithmException {
+        HttpClientProperties.Pool pool = new HttpClientProperties.Pool(10, 2);
+        pool.setLeaseTimeoutMs(httpClientProperties.getNodes().getHealthCheckTimeoutMs());
+        pool.setConnectTimeoutMs(httpClientProperties.getNodes().getHealthCheckTimeoutMs());
+        pool.setReadTimeoutMs(httpClientProperties.getNodes().getHealthCheckTimeoutMs());
+        return buildRestTemplate("health-check", pool, false);
+    }
+
+    @Bean
+    @Primary
+    @SuppressWarnings("deprecation")
+    public AsyncRestTemplate asyncRestTemplate() throws KeyManagementException, NoSuchAlgorithmException, IOReactorException {
+        return buildAsyncRestTemplate("default-async", httpClientProperties.getPool(), false);
+    }
+
+    @Bean
+    @SuppressWarnings("deprecation")
+    public AsyncRestTemplate publisherAsyncRestTemplate() throws KeyManagementException, NoSuchAlgorithmException, IOReactorException {
+        AsyncRestTemplate asyncRestTemplate = buildAsyncRestTemplate(EndpointFamily.PUBLISHER.tagValue() + "-async", httpClientProperties.getPool(EndpointFamily.PUBLISHER), true);
+        asyncRestTemplate.getInterceptors().add(buildInterceptorChain(EndpointFamily.PUBLISHER));
+        return asyncRestTemplate;
+    }
+
+    @Bean
+    @SuppressWarnings("deprecation")
+    public AsyncRestTemplate storeAsyncRestTemplate() throws KeyManagementException, NoSuchAlgorithmException, IOReactorException {
+        AsyncRestTemplate asyncRestTemplate = buildAsyncRestTemplate(EndpointFamily.STORE.tagValue() + "-async", httpClientProperties.getPool(EndpointFamily.STORE), true);
+        asyncRestTemplate.getInterceptors().add(buildInterceptorChain(EndpointFamily.STORE));
+        return asyncRestTemplate;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        retryScheduler.shutdownNow();
+        hedgeExecutor.shutdownNow();
+        for(Closeable httpClient : httpClients) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.warn("Could not close an HTTP client: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${wso2.http.async.eviction.interval.ms:10000}")
+    public void evictAsyncConnections() {
+        asyncConnectionManagers.forEach((connectionManager, idleEvictionMs) -> {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(idleEvictionMs, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private RestTemplate buildRestTemplate(String poolName, HttpClientProperties.Pool pool, boolean timeoutPerOperation) throws KeyManagementException, NoSuchAlgorithmException {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(buildSocketFactoryRegistry());
+        connectionManager.setMaxTotal(pool.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(pool.getMaxPerRoute());
+        connectionManager.setValidateAfterInactivity(pool.getValidateAfterInactivityMs());
+        registerPoolMetrics(poolName, connectionManager);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(pool.getLeaseTimeoutMs())
+                .setConnectTimeout(pool.getConnectTimeoutMs())
+                .setSocketTimeout(pool.getReadTimeoutMs())
+                .build();
+
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(buildKeepAliveStrategy(pool.getKeepAliveMs()))
+                .evictExpiredConnections()
+                .evictIdleConnections(pool.getIdleEvictionMs(), TimeUnit.MILLISECONDS)
+                .build();
+        httpClients.add(httpClient);
+        if(!timeoutPerOperation) {
+            return new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+        }
+        return new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient) {
+            @Override
+            protected HttpContext createHttpContext(HttpMethod httpMethod, URI uri) {
+                return buildOperationContext(requestConfig, httpMethod, uri);
+            }
+
+            @Override
+            protected void postProcessHttpRequest(HttpUriRequest request) {
+                CallAbort.attach(request);
+            }
+        });
+    }
+
+    @SuppressWarnings("deprecation")
+    private AsyncRestTemplate buildAsyncRestTemplate(String poolName, HttpClientProperties.Pool pool, boolean timeoutPerOperation) throws KeyManagementException, NoSuchAlgorithmException, IOReactorException {
+        Registry<SchemeIOSessionStrategy> sessionStrategyRegistry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("https", new SSLIOSessionStrategy(buildSslContext()))
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .build();
+        DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                .setConnectTimeout(pool.getConnectTimeoutMs())
+                .setSoTimeout(pool.getReadTimeoutMs())
+                .build());
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(ioReactor, sessionStrategyRegistry);
+        connectionManager.setMaxTotal(pool.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(pool.getMaxPerRoute());
+        asyncConnectionManagers.put(connectionManager, pool.getIdleEvictionMs());
+        registerPoolMetrics(poolName, connectionManager);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(pool.getLeaseTimeoutMs())
+                .setConnectTimeout(pool.getConnectTimeoutMs())
+                .setSocketTimeout(pool.getReadTimeoutMs())
+                .build();
+
+        CloseableHttpAsyncClient httpAsyncClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(buildKeepAliveStrategy(pool.getKeepAliveMs()))
+                .build();
+        httpAsyncClient.start();
+        httpClients.add(httpAsyncClient);
+        if(!timeoutPerOperation) {
+            return new AsyncRestTemplate(new HttpComponentsAsyncClientHttpRequestFactory(httpAsyncClient));
+        }
+        return new AsyncRestTemplate(new HttpComponentsAsyncClientHttpRequestFactory(httpAsyncClient) {
+            @Override
+            protected HttpContext createHttpContext(HttpMethod httpMethod, URI uri) {
+                return buildOperationContext(requestConfig, httpMethod, uri);
+            }
+        });
+    }
+
+    /* The publisher cache first, breaker and retries, then hedging, the limiter and the node choice for each attempt */
+    private InterceptorChain buildInterceptorChain(EndpointFamily family) {
+        List<InterceptorChain.Interceptor> interceptors = new ArrayList<>();
+        if(family == EndpointFamily.PUBLISHER) {
+            interceptors.add(new ApiMetadataCacheInterceptor(apiMetadataCache, nodeBalancers.get(family).getBaseUrl()));
+        }
+        interceptors.add(buildResilientCallInterceptor(family));
+        interceptors.add(getHedgingInterceptor(family));
+        interceptors.add(buildConcurrencyLimitInterceptor(family));
+        interceptors.add(new LoadBalancingInterceptor(nodeBalancers.get(family)));
+        return new InterceptorChain(interceptors);
+    }
+
+    private synchronized HedgingInterceptor getHedgingInterceptor(EndpointFamily family) {
+        return hedgingInterceptors.computeIfAbsent(family, key -> new HedgingInterceptor(key, nodeBalancers.get(key),
+                httpClientProperties.getHedge(), retryScheduler, hedgeExecutor, meterRegistry));
+    }
+
+    private ResilientCallInterceptor buildResilientCallInterceptor(EndpointFamily family) {
+        return new ResilientCallInterceptor(family, circuitBreakers.get(family), httpClientProperties.getRetry(), retryScheduler, meterRegistry);
+    }
+
+    private ConcurrencyLimitInterceptor buildConcurrencyLimitInterceptor(EndpointFamily family) {
+        return new ConcurrencyLimitInterceptor(family, concurrencyLimiters.get(family), meterRegistry);
+    }
+
+    /* The socket timeout depends on what the call does, a lifecycle change takes much longer than a read */
+    private HttpContext buildOperationContext(RequestConfig requestConfig, HttpMethod httpMethod, URI uri) {
+        OperationClass operation = OperationClass.of(httpMethod, uri.getPath());
+        HttpClientContext context = HttpClientContext.create();
+        context.setRequestConfig(RequestConfig.copy(requestConfig)
+                .setSocketTimeout(httpClientProperties.getTimeout().getMs(operation))
+                .build());
+        return context;
+    }
+
+    /* Honour the Keep-Alive header sent by WSO2, otherwise keep the connection for the configured time */
+    private ConnectionKeepAliveStrategy buildKeepAliveStrategy(long defaultKeepAliveMs) {
+        return (response, context) -> {
+            long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 ? keepAlive : defaultKeepAliveMs;
+        };
+    }
+
+    private Registry<ConnectionSocketFactory> buildSocketFactoryRegistry() throws KeyManagementException, NoSuchAlgorithmException {
+        SSLConnectionSocketFactory csf = new SSLConnectionSocketFactory(buildSslContext());
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("https", csf)
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .build();
+    }
+
+    private SSLContext buildSslContext() throws KeyManagementException, NoSuchAlgorithmException {
+        SSLContext sslContext = SSLContext.getInstance("SSL");
+        sslContext.init(null, new TrustManager[] { new X509TrustManager() {
+            public X509Certificate[] getAcceptedIssuers() {
+                    return null;
+                }
+            public void checkClientTrusted(X509Certificate[] certs, String authType) {}
+            public void checkServerTrusted(X509Certificate[] certs, String authType) {}
+        } }, new SecureRandom());
+        return sslContext;
+    }
+
+    private void registerPoolMetrics(String poolName, ConnPoolControl<HttpRoute> connectionManager) {
+        Gauge.builder("wso2.http.pool.leased", connectionManager, manager -> manager.getTotalStats().getLeased())
+                .tag("pool", poolName).register(meterRegistry);
+        Gauge.builder("wso2.http.pool.pending", connectionManager, manager -> manager.getTotalStats().getPending())
+                .tag("pool", poolName).register(meterRegistry);
+        Gauge.builder("wso2.http.pool.available", connectionManager, manager -> manager.getTotalStats().getAvailable())
+                .tag("pool", poolName).register(meterRegistry);
+        Gauge.builder("wso2.http.pool.max", connectionManager, manager -> manager.getTotalStats().getMax())
+                .tag("pool", poolName).register(meterRegistry);
+    }
+}
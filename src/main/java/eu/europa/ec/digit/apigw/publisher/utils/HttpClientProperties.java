@@ -0,0 +1,136 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "wso2.http")
+public class HttpClientProperties {
+
+    /* Used for calls outside WSO2, like fetching the swagger definition of a backend */
+    private Pool pool = new Pool();
+
+    private Pool publisher = new Pool();
+    private Pool store = new Pool();
+    private Pool token = new Pool(20, 20);
+
+    /* Read timeouts of the publisher and store calls, they replace the read timeout of the pool */
+    private Timeout timeout = new Timeout();
+
+    /* Only GET calls are retried, see ResilientCallInterceptor */
+    private Retry retry = new Retry();
+
+    /* One breaker for the publisher and one for the store */
+    private Circuit circuit = new Circuit();
+
+    /* One adaptive concurrency limit for the publisher and one for the store */
+    private Limit limit = new Limit();
+
+    /* Balancing and health checks over the nodes listed in wso2.api.publisher.endpoint and wso2.api.store.endpoint */
+    private Nodes nodes = new Nodes();
+
+    /* Second attempts of slow GET calls, see HedgingInterceptor */
+    private Hedge hedge = new Hedge();
+
+    public Pool getPool(EndpointFamily family) {
+        switch (family) {
+            case PUBLISHER: return publisher;
+            case STORE: return store;
+            default: return token;
+        }
+    }
+
+    @Data
+    public static class Timeout {
+        private int readMs = 15000;
+        private int writeMs = 30000;
+        private int lifecycleMs = 60000;
+        private int swaggerUploadMs = 60000;
+
+        public int getMs(OperationClass operation) {
+            switch (operation) {
+                case READ: return readMs;
+                case LIFECYCLE: return lifecycleMs;
+                case SWAGGER_UPLOAD: return swaggerUploadMs;
+                default: return writeMs;
+            }
+        }
+    }
+
+    @Data
+    public static class Retry {
+        private int maxAttempts = 3;
+        private long initialBackoffMs = 200;
+        private long maxBackoffMs = 2000;
+    }
+
+    @Data
+    public static class Circuit {
+        private boolean enabled = true;
+        private int windowSize = 50;
+        private int minimumCalls = 20;
+        private int failureRateThreshold = 50;
+        /* Share of the timeout of the operation class after which a call counts as slow */
+        private double slowCallRatio = 0.66;
+        private int slowRateThreshold = 80;
+        private long openMs = 30000;
+        private int halfOpenCalls = 3;
+    }
+
+    @Data
+    public static class Limit {
+        private boolean enabled = true;
+        private int initialLimit = 20;
+        private int minLimit = 2;
+        private int maxLimit = 200;
+        private double backoffRatio = 0.9;
+        private double latencyTolerance = 2.0;
+        private int maxQueue = 500;
+        private long queueTimeoutMs = 10000;
+        private double bulkShare = 0.7;
+        private int maxBulkQueue = 5000;
+        private long bulkQueueTimeoutMs = 60000;
+    }
+
+    @Data
+    public static class Nodes {
+        private int consecutiveFailures = 3;
+        private long ejectionMs = 30000;
+        private double slowFactor = 3.0;
+        private long slowMinLatencyMs = 1000;
+        private boolean healthCheckEnabled = true;
+        private String healthCheckPath = "";
+        private int healthCheckTimeoutMs = 2000;
+    }
+
+    @Data
+    public static class Hedge {
+        private boolean enabled = false;
+        private double delayPercentile = 95;
+        private long minDelayMs = 50;
+        private double maxRate = 0.05;
+        private int maxInFlight = 20;
+    }
+
+    @Data
+    public static class Pool {
+        private int maxTotal = 100;
+        private int maxPerRoute = 50;
+        private long keepAliveMs = 30000;
+        private long idleEvictionMs = 60000;
+        private int validateAfterInactivityMs = 2000;
+        private int leaseTimeoutMs = 5000;
+        private int connectTimeoutMs = 5000;
+        private int readTimeoutMs = 30000;
+
+        public Pool() {
+        }
+
+        public Pool(int maxTotal, int maxPerRoute) {
+            this.maxTotal = maxTotal;
+            this.maxPerRoute = maxPerRoute;
+        }
+    }
+}
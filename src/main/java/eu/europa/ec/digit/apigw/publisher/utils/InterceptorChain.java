@@ -0,0 +1,80 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.AsyncClientHttpRequestExecution;
+import org.springframework.http.client.AsyncClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the interceptors of a WSO2 template with executions that can be called more than once, and from several threads.
+ * The execution Spring passes to an interceptor walks a single iterator, so a retry or a hedge sent through it would
+ * skip the interceptors registered after the caller. Registered as the only interceptor of the template.
+ */
+@SuppressWarnings("deprecation")
+public class InterceptorChain implements ClientHttpRequestInterceptor, AsyncClientHttpRequestInterceptor {
+
+    public interface Interceptor extends ClientHttpRequestInterceptor, AsyncClientHttpRequestInterceptor {
+    }
+
+    private final List<Interceptor> interceptors;
+
+    public InterceptorChain(List<Interceptor> interceptors) {
+        this.interceptors = new ArrayList<>(interceptors);
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        return new Execution(0, execution).execute(request, body);
+    }
+
+    @Override
+    public ListenableFuture<ClientHttpResponse> intercept(HttpRequest request, byte[] body, AsyncClientHttpRequestExecution execution) throws IOException {
+        return new AsyncExecution(0, execution).executeAsync(request, body);
+    }
+
+    /* Once past the last interceptor, the execution of Spring only creates and sends a new request */
+    private class Execution implements ClientHttpRequestExecution {
+
+        private final int index;
+        private final ClientHttpRequestExecution last;
+
+        private Execution(int index, ClientHttpRequestExecution last) {
+            this.index = index;
+            this.last = last;
+        }
+
+        @Override
+        public ClientHttpResponse execute(HttpRequest request, byte[] body) throws IOException {
+            if(index < interceptors.size()) {
+                return interceptors.get(index).intercept(request, body, new Execution(index + 1, last));
+            }
+            return last.execute(request, body);
+        }
+    }
+
+    private class AsyncExecution implements AsyncClientHttpRequestExecution {
+
+        private final int index;
+        private final AsyncClientHttpRequestExecution last;
+
+        private AsyncExecution(int index, AsyncClientHttpRequestExecution last) {
+            this.index = index;
+            this.last = last;
+        }
+
+        @Override
+        public ListenableFuture<ClientHttpResponse> executeAsync(HttpRequest request, byte[] body) throws IOException {
+            if(index < interceptors.size()) {
+                return interceptors.get(index).intercept(request, body, new AsyncExecution(index + 1, last));
+            }
+            return last.executeAsync(request, body);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.AsyncClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.support.HttpRequestWrapper;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends each attempt of a WSO2 call to the node chosen by the NodeBalancer of its family. Registered last, so a retry
+ * can land on another node and the limiter counts the calls of the whole family.
+ */
+@SuppressWarnings("deprecation")
+public class LoadBalancingInterceptor implements InterceptorChain.Interceptor {
+
+    private final NodeBalancer balancer;
+
+    public LoadBalancingInterceptor(NodeBalancer balancer) {
+        this.balancer = balancer;
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        WSO2Node node = choose(request);
+        OperationClass operation = OperationClass.of(request.getMethod(), request.getURI().getPath());
+        long start = System.nanoTime();
+        try {
+            ClientHttpResponse response = execution.execute(onNode(request, node), body);
+            balancer.release(node, operation, elapsedMs(start), response.getRawStatusCode() >= 500);
+            return response;
+        } catch (IOException e) {
+            if(CallAbort.isCurrentAborted()) {
+                balancer.cancel(node);
+            } else {
+                balancer.release(node, operation, elapsedMs(start), true);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public ListenableFuture<ClientHttpResponse> intercept(HttpRequest request, byte[] body, AsyncClientHttpRequestExecution execution) throws IOException {
+        WSO2Node node = choose(request);
+        OperationClass operation = OperationClass.of(request.getMethod(), request.getURI().getPath());
+        long start = System.nanoTime();
+        ListenableFuture<ClientHttpResponse> call;
+        try {
+            call = execution.executeAsync(onNode(request, node), body);
+        } catch (IOException e) {
+            balancer.release(node, operation, elapsedMs(start), true);
+            throw e;
+        }
+        SettableListenableFuture<ClientHttpResponse> result = new SettableListenableFuture<>();
+        call.addCallback(response -> {
+            boolean failed;
+            try {
+                failed = response.getRawStatusCode() >= 500;
+            } catch (IOException e) {
+                failed = true;
+            }
+            balancer.release(node, operation, elapsedMs(start), failed);
+            if(!result.set(response)) {
+                response.close();
+            }
+        }, e -> {
+            if(call.isCancelled()) {
+                balancer.cancel(node);
+            } else {
+                balancer.release(node, operation, elapsedMs(start), true);
+            }
+            result.setException(e);
+        });
+        result.addCallback(response -> {}, e -> {
+            if(result.isCancelled()) {
+                call.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /* A hedge goes to another node than the attempt it backs up, which is told the node it was given */
+    private WSO2Node choose(HttpRequest request) {
+        HedgingInterceptor.Attempt attempt = HedgingInterceptor.Attempt.of(request);
+        if(attempt == null) {
+            return balancer.choose();
+        }
+        if(attempt.isHedge()) {
+            return balancer.choose(attempt.getPrimaryNode());
+        }
+        WSO2Node node = balancer.choose();
+        attempt.setPrimaryNode(node);
+        return node;
+    }
+
+    private HttpRequest onNode(HttpRequest request, WSO2Node node) {
+        URI uri = balancer.rewrite(request.getURI(), node);
+        if(uri == request.getURI()) {
+            return request;
+        }
+        return new HttpRequestWrapper(request) {
+            @Override
+            public URI getURI() {
+                return uri;
+            }
+        };
+    }
+
+    private long elapsedMs(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
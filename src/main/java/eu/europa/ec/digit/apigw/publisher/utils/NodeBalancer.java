@@ -0,0 +1,164 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the calls of one WSO2 endpoint family over its nodes, sending each call to the available node with the fewest
+ * calls in flight. A node is ejected for wso2.http.nodes.ejection-ms after consecutive failures, or when its latency is
+ * far above the other nodes for the same operation class, and skipped while the active health check finds it down.
+ * When no node is available every node is used again, an unreachable WSO2 is the breaker's business.
+ */
+@Slf4j
+public class NodeBalancer {
+
+    /* Weight of the last call in the latency of a node */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final EndpointFamily family;
+    private final HttpClientProperties.Nodes config;
+    private final List<WSO2Node> nodes = new ArrayList<>();
+    private final AtomicInteger nextStart = new AtomicInteger();
+    private final List<Timer> latencyTimers = new ArrayList<>();
+    private final List<Counter> ejections = new ArrayList<>();
+
+    public NodeBalancer(EndpointFamily family, String[] baseUrls, HttpClientProperties.Nodes config, MeterRegistry meterRegistry) {
+        this.family = family;
+        this.config = config;
+        for(String baseUrl : baseUrls) {
+            String trimmedUrl = baseUrl.trim();
+            String name = URI.create(trimmedUrl).getAuthority();
+            for(WSO2Node node : nodes) {
+                if(node.getName().equals(name)) {
+                    name = name + "-" + nodes.size();
+                }
+            }
+            WSO2Node node = new WSO2Node(trimmedUrl, name);
+            nodes.add(node);
+            latencyTimers.add(meterRegistry.timer("wso2.node.latency", "family", family.tagValue(), "node", name));
+            ejections.add(meterRegistry.counter("wso2.node.ejections", "family", family.tagValue(), "node", name));
+            Gauge.builder("wso2.node.outstanding", node, n -> n.getOutstanding().get())
+                    .tags("family", family.tagValue(), "node", name).register(meterRegistry);
+            Gauge.builder("wso2.node.available", node, n -> n.isAvailable(System.currentTimeMillis()) ? 1 : 0)
+                    .tags("family", family.tagValue(), "node", name).register(meterRegistry);
+        }
+    }
+
+    /* The URL the callers build their requests on, rewritten to the chosen node */
+    public String getBaseUrl() {
+        return nodes.get(0).getBaseUrl();
+    }
+
+    public List<WSO2Node> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    public WSO2Node choose() {
+        return choose(null);
+    }
+
+    /* Never the excluded node while there is another one, a hedge is not sent to the node of the attempt it backs up */
+    public WSO2Node choose(WSO2Node excluded) {
+        long now = System.currentTimeMillis();
+        int start = Math.floorMod(nextStart.getAndIncrement(), nodes.size());
+        WSO2Node chosen = null;
+        WSO2Node fallback = null;
+        for(int i = 0; i < nodes.size(); i++) {
+            WSO2Node node = nodes.get((start + i) % nodes.size());
+            if(node == excluded && nodes.size() > 1) {
+                continue;
+            }
+            if(fallback == null || node.getOutstanding().get() < fallback.getOutstanding().get()) {
+                fallback = node;
+            }
+            if(node.isAvailable(now) && (chosen == null || node.getOutstanding().get() < chosen.getOutstanding().get())) {
+                chosen = node;
+            }
+        }
+        chosen = chosen != null ? chosen : fallback;
+        chosen.getOutstanding().incrementAndGet();
+        return chosen;
+    }
+
+    public URI rewrite(URI uri, WSO2Node node) {
+        String url = uri.toString();
+        if(node == nodes.get(0) || !url.startsWith(getBaseUrl())) {
+            return uri;
+        }
+        return URI.create(node.getBaseUrl() + url.substring(getBaseUrl().length()));
+    }
+
+    /* A 5xx or a connection error counts as failed */
+    public void release(WSO2Node node, OperationClass operation, long latencyMs, boolean failed) {
+        node.getOutstanding().decrementAndGet();
+        latencyTimers.get(nodes.indexOf(node)).record(latencyMs, TimeUnit.MILLISECONDS);
+        if(failed) {
+            if(node.recordFailure() >= config.getConsecutiveFailures()) {
+                eject(node, "after " + config.getConsecutiveFailures() + " consecutive failures");
+            }
+            return;
+        }
+        node.recordSuccess();
+        node.recordLatency(operation, latencyMs, LATENCY_WEIGHT);
+        double nodeLatencyMs = node.getLatencyMs(operation);
+        double othersLatencyMs = averageLatencyOfOthers(node, operation);
+        if(othersLatencyMs > 0 && nodeLatencyMs > config.getSlowMinLatencyMs() && nodeLatencyMs > othersLatencyMs * config.getSlowFactor()) {
+            eject(node, "with a " + operation.tagValue() + " latency of " + (long) nodeLatencyMs + " ms against " + (long) othersLatencyMs + " ms on the other nodes");
+        }
+    }
+
+    public int countAvailable() {
+        long now = System.currentTimeMillis();
+        return (int) nodes.stream().filter(node -> node.isAvailable(now)).count();
+    }
+
+    public boolean isAvailableBesides(WSO2Node node) {
+        long now = System.currentTimeMillis();
+        return nodes.stream().anyMatch(other -> other != node && other.isAvailable(now));
+    }
+
+    /* The call was abandoned before the node answered */
+    public void cancel(WSO2Node node) {
+        node.getOutstanding().decrementAndGet();
+    }
+
+    public void setHealthy(WSO2Node node, boolean healthy) {
+        if(node.isHealthy() != healthy) {
+            log.warn("WSO2 {} node {} is {}", family.tagValue(), node.getName(), healthy ? "healthy again" : "failing its health check");
+        }
+        node.setHealthy(healthy);
+    }
+
+    private synchronized void eject(WSO2Node node, String reason) {
+        long now = System.currentTimeMillis();
+        if(!node.isAvailable(now)) {
+            return;
+        }
+        /* Never eject the last node standing */
+        if(countAvailable() <= 1) {
+            return;
+        }
+        log.warn("WSO2 {} node {} ejected for {} ms {}", family.tagValue(), node.getName(), config.getEjectionMs(), reason);
+        node.eject(now + config.getEjectionMs());
+        ejections.get(nodes.indexOf(node)).increment();
+    }
+
+    private double averageLatencyOfOthers(WSO2Node node, OperationClass operation) {
+        long now = System.currentTimeMillis();
+        return nodes.stream()
+                .filter(other -> other != node && other.isAvailable(now) && other.getLatencyMs(operation) >= 0)
+                .mapToDouble(other -> other.getLatencyMs(operation))
+                .average()
+                .orElse(-1);
+    }
+}
@@ -0,0 +1,78 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestTemplate;
+
+import javax.annotation.PostConstruct;
+import java.net.URI;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The nodes of the WSO2 publisher and store, wso2.api.publisher.endpoint and wso2.api.store.endpoint take a comma separated
+ * list of node URLs. Besides the passive checks done on every call, each node is probed every
+ * wso2.http.nodes.health-check-interval-ms: any answer below 500, even the 401 of an anonymous call, means the node is up.
+ */
+@Slf4j
+@Component
+public class NodeBalancers {
+
+    @Value("${wso2.api.publisher.endpoint}")
+    private String[] publisherNodes;
+
+    @Value("${wso2.api.store.endpoint}")
+    private String[] storeNodes;
+
+    @Autowired
+    private HttpClientProperties httpClientProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Lazy
+    @Autowired
+    @Qualifier("healthCheckRestTemplate")
+    private RestTemplate healthCheckRestTemplate;
+
+    private final Map<EndpointFamily, NodeBalancer> balancers = new EnumMap<>(EndpointFamily.class);
+
+    @PostConstruct
+    public void init() {
+        balancers.put(EndpointFamily.PUBLISHER, new NodeBalancer(EndpointFamily.PUBLISHER, publisherNodes, httpClientProperties.getNodes(), meterRegistry));
+        balancers.put(EndpointFamily.STORE, new NodeBalancer(EndpointFamily.STORE, storeNodes, httpClientProperties.getNodes(), meterRegistry));
+    }
+
+    public NodeBalancer get(EndpointFamily family) {
+        return balancers.get(family);
+    }
+
+    @Scheduled(fixedDelayString = "${wso2.http.nodes.health-check-interval-ms:10000}")
+    public void checkNodes() {
+        if(!httpClientProperties.getNodes().isHealthCheckEnabled()) {
+            return;
+        }
+        balancers.values().forEach(balancer -> balancer.getNodes().forEach(node -> balancer.setHealthy(node, isUp(node))));
+    }
+
+    private boolean isUp(WSO2Node node) {
+        try {
+            return healthCheckRestTemplate.execute(URI.create(node.getBaseUrl() + httpClientProperties.getNodes().getHealthCheckPath()), HttpMethod.GET,
+                    null, ClientHttpResponse::getRawStatusCode) < 500;
+        } catch (HttpStatusCodeException e) {
+            return e.getRawStatusCode() < 500;
+        } catch (Exception e) {
+            log.debug("Health check of {} failed: {}", node.getName(), e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import org.springframework.http.HttpMethod;
+
+/**
+ * Groups the WSO2 calls by how long they are allowed to take, see wso2.http.timeout.
+ */
+public enum OperationClass {
+    READ,
+    WRITE,
+    LIFECYCLE,
+    SWAGGER_UPLOAD;
+
+    public static OperationClass of(HttpMethod method, String path) {
+        if(path.contains("/change-lifecycle")) {
+            return LIFECYCLE;
+        }
+        int queryStart = path.indexOf('?');
+        String pathOnly = queryStart < 0 ? path : path.substring(0, queryStart);
+        if(method == HttpMethod.PUT && pathOnly.endsWith("/swagger")) {
+            return SWAGGER_UPLOAD;
+        }
+        if(method == HttpMethod.GET || method == HttpMethod.HEAD) {
+            return READ;
+        }
+        return WRITE;
+    }
+
+    public String tagValue() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,150 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptor;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the multi call publish pipelines. In async mode the request thread is released while WSO2 answers,
+ * in blocking mode it waits for the whole pipeline like before, so both modes can be compared under load
+ * with the publisher.pipeline metrics.
+ *
+ * Each pipeline is given a timeout sized from the wso2.http settings of the calls it makes, so the client is not told
+ * it failed while the pipeline can still complete. A pipeline that outlives it anyway is cancelled, see CancellableRequest.
+ */
+@Slf4j
+@Component
+public class PipelineRunner implements DeferredResultProcessingInterceptor {
+
+    private static final String OPERATION_ATTRIBUTE = PipelineRunner.class.getName() + ".OPERATION";
+    private static final String TIMEOUT_ATTRIBUTE = PipelineRunner.class.getName() + ".TIMEOUT";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private HttpClientProperties properties;
+
+    @Value("${wso2.async.enabled:true}")
+    private boolean asyncEnabled;
+
+    @Value("${wso2.bulk.parallelism:8}")
+    private int bulkParallelism;
+
+    /* For the bulk pipelines whose number of items is only known once WSO2 has answered */
+    @Value("${wso2.bulk.timeout.ms:600000}")
+    private long bulkTimeoutMs;
+
+    private final AtomicInteger activePipelines = new AtomicInteger();
+
+    @PostConstruct
+    public void initMetrics() {
+        meterRegistry.gauge("publisher.pipeline.active", Tags.of(modeTag()), activePipelines);
+    }
+
+    public <T> CompletableFuture<T> run(String operation, long timeoutMs, HttpServletRequest request, Supplier<CompletableFuture<T>> pipeline) {
+        request.setAttribute(OPERATION_ATTRIBUTE, operation);
+        request.setAttribute(TIMEOUT_ATTRIBUTE, timeoutMs);
+        Timer.Sample sample = Timer.start(meterRegistry);
+        activePipelines.incrementAndGet();
+        CompletableFuture<T> result = pipeline.get().whenComplete((value, e) -> {
+            activePipelines.decrementAndGet();
+            sample.stop(meterRegistry.timer("publisher.pipeline.duration", Tags.of(modeTag(), Tag.of("operation", operation))));
+        });
+        if(asyncEnabled) {
+            return result;
+        }
+        return CompletableFuture.completedFuture(result.join());
+    }
+
+    /* The longest a pipeline making these calls one after the other may take */
+    public long timeoutMs(CallPriority priority, OperationClass... calls) {
+        long timeoutMs = 0;
+        for(OperationClass call : calls) {
+            timeoutMs += callTimeoutMs(call, priority);
+        }
+        return timeoutMs;
+    }
+
+    /* The longest a bulk pipeline may take, given the calls of one item and the calls made once before the fan-out */
+    public long bulkTimeoutMs(int items, OperationClass[] itemCalls, OperationClass... calls) {
+        long rounds = (items + Math.max(1, bulkParallelism) - 1) / Math.max(1, bulkParallelism);
+        return timeoutMs(CallPriority.BULK, calls) + rounds * timeoutMs(CallPriority.BULK, itemCalls);
+    }
+
+    public long bulkTimeoutMs() {
+        return bulkTimeoutMs;
+    }
+
+    /* The longest an outside call, like fetching a swagger definition, may take */
+    public long outsideCallTimeoutMs() {
+        HttpClientProperties.Pool pool = properties.getPool();
+        return pool.getLeaseTimeoutMs() + pool.getConnectTimeoutMs() + pool.getReadTimeoutMs();
+    }
+
+    /* Each attempt may get a token, wait for a permit of the limiter, for a connection and for the read timeout, with
+       the retry backoff in between */
+    private long callTimeoutMs(OperationClass operation, CallPriority priority) {
+        HttpClientProperties.Limit limit = properties.getLimit();
+        long queueMs = !limit.isEnabled() ? 0 : priority == CallPriority.BULK ? limit.getBulkQueueTimeoutMs() : limit.getQueueTimeoutMs();
+        HttpClientProperties.Pool token = properties.getToken();
+        long tokenMs = token.getLeaseTimeoutMs() + token.getConnectTimeoutMs() + token.getReadTimeoutMs();
+        long connectMs = Math.max(connectMs(properties.getPublisher()), connectMs(properties.getStore()));
+        int attempts = operation == OperationClass.READ ? Math.max(1, properties.getRetry().getMaxAttempts()) : 1;
+        return tokenMs + attempts * (queueMs + connectMs + properties.getTimeout().getMs(operation)) + (attempts - 1) * properties.getRetry().getMaxBackoffMs();
+    }
+
+    private long connectMs(HttpClientProperties.Pool pool) {
+        return pool.getLeaseTimeoutMs() + pool.getConnectTimeoutMs();
+    }
+
+    /* Called before the async processing starts, the only point the timeout of one request can still be set */
+    @Override
+    public <T> void beforeConcurrentHandling(NativeWebRequest request, DeferredResult<T> deferredResult) {
+        Object timeoutMs = request.getAttribute(TIMEOUT_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if(timeoutMs != null && request instanceof AsyncWebRequest) {
+            ((AsyncWebRequest) request).setTimeout((Long) timeoutMs);
+            /* A pipeline cut short by the timeout still runs, it keeps reading the request once the container reuses it */
+            CancellableRequest cancellable = request.getNativeRequest(CancellableRequest.class);
+            if(cancellable != null) {
+                ((AsyncWebRequest) request).addCompletionHandler(cancellable::detach);
+            }
+        }
+    }
+
+    @Override
+    public <T> boolean handleTimeout(NativeWebRequest request, DeferredResult<T> deferredResult) {
+        Object operation = request.getAttribute(OPERATION_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if(operation == null) {
+            return true;
+        }
+        CancellableRequest cancellable = request.getNativeRequest(CancellableRequest.class);
+        if(cancellable != null) {
+            cancellable.cancel();
+        }
+        log.warn("The {} pipeline did not complete within {} ms, the WSO2 calls it has not sent yet are cancelled",
+                operation, request.getAttribute(TIMEOUT_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST));
+        meterRegistry.counter("publisher.pipeline.timeouts", "operation", operation.toString()).increment();
+        return true;
+    }
+
+    private Tag modeTag() {
+        return Tag.of("mode", asyncEnabled ? "async" : "blocking");
+    }
+}
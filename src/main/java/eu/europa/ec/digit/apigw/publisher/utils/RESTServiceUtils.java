@@ -31,10 +31,11 @@ public class RESTServiceUtils {
 
         Map<String, String[]> parameters = request.getParameterMap();
         Map<String, String> callParameters = new HashMap<>();
-        if(parameters.containsKey(Constants.API_NAME_PARAMETER)) {
-            callParameters.put(Constants.API_NAME_PARAMETER, parameters.get(Constants.API_NAME_PARAMETER)[0]);
-            if(parameters.containsKey(Constants.API_QUERY_LIMIT)) {
-                callParameters.put(Constants.API_QUERY_LIMIT, parameters.get(Constants.API_QUERY_LIMIT)[0]);
+        if(parameters.containsKey(Constants.API_NAME_PARAMETER) || parameters.containsKey(Constants.API_QUERY_TEXT)) {
+            for(String parameter : new String[]{Constants.API_NAME_PARAMETER, Constants.API_QUERY_TEXT, Constants.API_QUERY_LIMIT, Constants.API_QUERY_OFFSET}) {
+                if(parameters.containsKey(parameter)) {
+                    callParameters.put(parameter, parameters.get(parameter)[0]);
+                }
             }
             return callParameters;
         } else {
@@ -51,19 +52,16 @@ public class RESTServiceUtils {
        }
     }
 
+    /* The identifier reads provider-name-version, with a tenant provider written user-AT-domain */
     public String getApiNameFromIdentifier(String apiIdentifier) {
-        String[] identifierArray = apiIdentifier.split("-");
-        if(identifierArray.length > 3) {
-            StringBuilder builder = new StringBuilder();
-            for(int i=0; i<identifierArray.length; i++) {
-                if(i>0 && i<identifierArray.length) {
-                    builder.append(identifierArray[i]);
-                }
-            }
-            return builder.toString();
-        } else {
-            return identifierArray[1];
+        int versionStart = apiIdentifier.lastIndexOf('-');
+        if(versionStart < 0) {
+            return apiIdentifier;
         }
+        String providerAndName = apiIdentifier.substring(0, versionStart);
+        int tenant = providerAndName.indexOf("-AT-");
+        int nameStart = tenant >= 0 ? providerAndName.indexOf('-', tenant + 4) : providerAndName.indexOf('-');
+        return nameStart < 0 ? providerAndName : providerAndName.substring(nameStart + 1);
     }
 
     public String getApiVersionFromIdentifier(String apiIdentifier) {
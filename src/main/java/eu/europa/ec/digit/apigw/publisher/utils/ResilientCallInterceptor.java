@@ -0,0 +1,192 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.AsyncClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guards the calls of one WSO2 endpoint family with its circuit breaker and retries the GET calls that failed on the
+ * connection or with 502, 503 or 504, waiting an exponential backoff with jitter between attempts.
+ * Read and pool lease timeouts are not retried, WSO2 was already given the full time of the operation.
+ */
+@Slf4j
+@SuppressWarnings("deprecation")
+public class ResilientCallInterceptor implements InterceptorChain.Interceptor {
+
+    private final EndpointFamily family;
+    private final CircuitBreaker circuitBreaker;
+    private final HttpClientProperties.Retry retry;
+    private final ScheduledExecutorService retryScheduler;
+    private final Counter retries;
+    private final Counter rejected;
+
+    public ResilientCallInterceptor(EndpointFamily family, CircuitBreaker circuitBreaker, HttpClientProperties.Retry retry,
+                                    ScheduledExecutorService retryScheduler, MeterRegistry meterRegistry) {
+        this.family = family;
+        this.circuitBreaker = circuitBreaker;
+        this.retry = retry;
+        this.retryScheduler = retryScheduler;
+        this.retries = meterRegistry.counter("wso2.http.retries", "family", family.tagValue());
+        this.rejected = meterRegistry.counter("wso2.circuit.rejected", "family", family.tagValue());
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        OperationClass operation = OperationClass.of(request.getMethod(), request.getURI().getPath());
+        for(int attempt = 1; ; attempt++) {
+            acquire();
+            long start = System.nanoTime();
+            try {
+                ClientHttpResponse response = execution.execute(request, body);
+                boolean failed = response.getRawStatusCode() >= 500;
+                circuitBreaker.onResult(operation, failed, elapsedMs(start));
+                if(!failed || !shouldRetry(request, response.getRawStatusCode(), attempt)) {
+                    return response;
+                }
+                response.close();
+            } catch (WSO2UnavailableException e) {
+                /* Refused by the limiter, WSO2 never saw the call */
+                circuitBreaker.onCancelled();
+                throw e;
+            } catch (IOException e) {
+                circuitBreaker.onResult(operation, true, elapsedMs(start));
+                if(!shouldRetry(request, e, attempt)) {
+                    throw e;
+                }
+            }
+            sleep(backoffMs(attempt));
+        }
+    }
+
+    @Override
+    public ListenableFuture<ClientHttpResponse> intercept(HttpRequest request, byte[] body, AsyncClientHttpRequestExecution execution) {
+        SettableListenableFuture<ClientHttpResponse> result = new SettableListenableFuture<>();
+        attemptAsync(request, body, execution, 1, result);
+        return result;
+    }
+
+    private void attemptAsync(HttpRequest request, byte[] body, AsyncClientHttpRequestExecution execution, int attempt,
+                              SettableListenableFuture<ClientHttpResponse> result) {
+        if(result.isCancelled()) {
+            return;
+        }
+        try {
+            acquire();
+        } catch (WSO2UnavailableException e) {
+            result.setException(e);
+            return;
+        }
+        OperationClass operation = OperationClass.of(request.getMethod(), request.getURI().getPath());
+        long start = System.nanoTime();
+        ListenableFuture<ClientHttpResponse> call;
+        try {
+            call = execution.executeAsync(request, body);
+        } catch (IOException e) {
+            circuitBreaker.onResult(operation, true, elapsedMs(start));
+            result.setException(e);
+            return;
+        }
+        call.addCallback(response -> {
+            if(result.isCancelled()) {
+                circuitBreaker.onCancelled();
+                response.close();
+                return;
+            }
+            int status;
+            try {
+                status = response.getRawStatusCode();
+            } catch (IOException e) {
+                circuitBreaker.onResult(operation, true, elapsedMs(start));
+                result.setException(e);
+                return;
+            }
+            boolean failed = status >= 500;
+            circuitBreaker.onResult(operation, failed, elapsedMs(start));
+            if(failed && shouldRetry(request, status, attempt)) {
+                response.close();
+                retryScheduler.schedule(() -> attemptAsync(request, body, execution, attempt + 1, result), backoffMs(attempt), TimeUnit.MILLISECONDS);
+            } else {
+                result.set(response);
+            }
+        }, e -> {
+            if(result.isCancelled() || e instanceof WSO2UnavailableException) {
+                circuitBreaker.onCancelled();
+                if(!result.isCancelled()) {
+                    result.setException(e);
+                }
+                return;
+            }
+            circuitBreaker.onResult(operation, true, elapsedMs(start));
+            if(shouldRetry(request, e, attempt)) {
+                retryScheduler.schedule(() -> attemptAsync(request, body, execution, attempt + 1, result), backoffMs(attempt), TimeUnit.MILLISECONDS);
+            } else {
+                result.setException(e);
+            }
+        });
+        result.addCallback(response -> {}, e -> {
+            if(result.isCancelled()) {
+                call.cancel(true);
+            }
+        });
+    }
+
+    private void acquire() throws WSO2UnavailableException {
+        if(!circuitBreaker.tryAcquire()) {
+            rejected.increment();
+            throw new WSO2UnavailableException("The WSO2 " + family.tagValue() + " is failing, calls are suspended for "
+                    + TimeUnit.MILLISECONDS.toSeconds(circuitBreaker.getRetryInMs() + 999) + " s");
+        }
+    }
+
+    private boolean shouldRetry(HttpRequest request, int status, int attempt) {
+        return (status == 502 || status == 503 || status == 504) && isRetryable(request, attempt);
+    }
+
+    private boolean shouldRetry(HttpRequest request, Throwable e, int attempt) {
+        return e instanceof IOException && !(e instanceof SocketTimeoutException) && !(e instanceof ConnectionPoolTimeoutException)
+                && isRetryable(request, attempt);
+    }
+
+    private boolean isRetryable(HttpRequest request, int attempt) {
+        if(attempt >= retry.getMaxAttempts() || (request.getMethod() != HttpMethod.GET && request.getMethod() != HttpMethod.HEAD)) {
+            return false;
+        }
+        retries.increment();
+        log.info("Retrying {} {}, attempt {} failed", request.getMethod(), request.getURI().getPath(), attempt);
+        return true;
+    }
+
+    /* Equal jitter: half of the exponential delay is kept, the other half is random, so parallel retries spread out */
+    private long backoffMs(int attempt) {
+        long delay = Math.min(retry.getMaxBackoffMs(), retry.getInitialBackoffMs() << Math.min(attempt - 1, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private void sleep(long delayMs) throws IOException {
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry a WSO2 call");
+        }
+    }
+
+    private long elapsedMs(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
@@ -28,10 +28,11 @@ public class SOAPServiceUtils {
 
         Map<String, String[]> parameters = request.getParameterMap();
         Map<String, String> callParameters = new HashMap<>();
-        if(parameters.containsKey(Constants.API_NAME_PARAMETER)) {
-            callParameters.put(Constants.API_NAME_PARAMETER, parameters.get(Constants.API_NAME_PARAMETER)[0]);
-            if(parameters.containsKey(Constants.API_QUERY_LIMIT)) {
-                callParameters.put(Constants.API_QUERY_LIMIT, parameters.get(Constants.API_QUERY_LIMIT)[0]);
+        if(parameters.containsKey(Constants.API_NAME_PARAMETER) || parameters.containsKey(Constants.API_QUERY_TEXT)) {
+            for(String parameter : new String[]{Constants.API_NAME_PARAMETER, Constants.API_QUERY_TEXT, Constants.API_QUERY_LIMIT, Constants.API_QUERY_OFFSET}) {
+                if(parameters.containsKey(parameter)) {
+                    callParameters.put(parameter, parameters.get(parameter)[0]);
+                }
             }
             return callParameters;
         } else {
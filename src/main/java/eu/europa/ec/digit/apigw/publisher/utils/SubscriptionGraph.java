@@ -0,0 +1,165 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import eu.europa.ec.digit.apigw.publisher.entity.Subscription;
+import eu.europa.ec.digit.apigw.publisher.entity.SubscriptionList;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The subscriptions of the store as edges between applications and APIs, the API side keyed by the identifier the store
+ * gives it, provider-name-version, to which a publisher API ID is turned through the ApiIndex. Every subscription list
+ * of an application the callers get from the store replaces the edges of that application, which are then complete for
+ * wso2.subscription.graph.ttl.seconds; subscribing, unsubscribing and removing an application through this service
+ * update the edges in between. The store only shows a user its own applications, so the reverse questions are asked
+ * for a given set of applications.
+ */
+@Component
+public class SubscriptionGraph {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ApiIndex apiIndex;
+
+    @Value("${wso2.subscription.graph.ttl.seconds:300}")
+    private long ttlSeconds;
+
+    private final Map<String, Subscription> subscriptionsById = new HashMap<>();
+    private final Map<String, Map<String, Subscription>> subscriptionsByApplication = new HashMap<>();
+    private final Map<String, Map<String, Subscription>> subscriptionsByApi = new HashMap<>();
+
+    /* When the complete list of each application was last read from the store */
+    private final Map<String, Long> loadedAt = new HashMap<>();
+
+    @PostConstruct
+    public void initMetrics() {
+        Gauge.builder("wso2.subscription.graph.edges", this, SubscriptionGraph::size).register(meterRegistry);
+        Gauge.builder("wso2.subscription.graph.applications", this, graph -> graph.countApplications()).register(meterRegistry);
+    }
+
+    public synchronized boolean isComplete(String applicationId) {
+        Long at = loadedAt.get(applicationId);
+        return at != null && System.currentTimeMillis() - at <= ttlSeconds * 1000;
+    }
+
+    public void replaceApplication(String applicationId, SubscriptionList subscriptionList) {
+        replaceApplication(applicationId, subscriptionList == null ? null : subscriptionList.getList(), System.currentTimeMillis());
+    }
+
+    public synchronized void replaceApplication(String applicationId, Collection<Subscription> subscriptions, long at) {
+        removeApplication(applicationId);
+        if(subscriptions != null) {
+            subscriptions.forEach(subscription -> add(applicationId, subscription));
+        }
+        loadedAt.put(applicationId, at);
+    }
+
+    public synchronized void add(Subscription subscription) {
+        if(subscription != null) {
+            add(subscription.getApplicationId(), subscription);
+        }
+    }
+
+    public synchronized void remove(String subscriptionId) {
+        Subscription subscription = subscriptionsById.remove(subscriptionId);
+        if(subscription != null) {
+            unlink(subscriptionsByApplication, subscription.getApplicationId(), subscriptionId);
+            unlink(subscriptionsByApi, subscription.getApiIdentifier(), subscriptionId);
+        }
+    }
+
+    public synchronized void removeApplication(String applicationId) {
+        Map<String, Subscription> subscriptions = subscriptionsByApplication.remove(applicationId);
+        if(subscriptions != null) {
+            subscriptions.values().forEach(subscription -> {
+                subscriptionsById.remove(subscription.getSubscriptionId());
+                unlink(subscriptionsByApi, subscription.getApiIdentifier(), subscription.getSubscriptionId());
+            });
+        }
+        loadedAt.remove(applicationId);
+    }
+
+    /* Copies, the callers set their call ID and errors on them */
+    public synchronized List<Subscription> findByApi(String apiIdentifier, Set<String> applicationIds) {
+        List<Subscription> found = new ArrayList<>();
+        subscriptionsByApi.getOrDefault(toIdentifier(apiIdentifier), new HashMap<>()).values().stream()
+                .filter(subscription -> applicationIds.contains(subscription.getApplicationId()))
+                .forEach(subscription -> found.add(copy(subscription)));
+        return found;
+    }
+
+    public synchronized List<Subscription> findByApplication(String applicationId) {
+        List<Subscription> found = new ArrayList<>();
+        subscriptionsByApplication.getOrDefault(applicationId, new HashMap<>()).values().forEach(subscription -> found.add(copy(subscription)));
+        return found;
+    }
+
+    /* The complete applications with their load time, for the CatalogueSnapshotStore */
+    public synchronized Map<String, Long> exportLoadedAt() {
+        return new HashMap<>(loadedAt);
+    }
+
+    public synchronized List<Subscription> exportSubscriptions() {
+        List<Subscription> subscriptions = new ArrayList<>();
+        subscriptionsById.values().forEach(subscription -> subscriptions.add(copy(subscription)));
+        return subscriptions;
+    }
+
+    public synchronized int size() {
+        return subscriptionsById.size();
+    }
+
+    private synchronized int countApplications() {
+        return subscriptionsByApplication.size();
+    }
+
+    private void add(String applicationId, Subscription subscription) {
+        if(applicationId == null || subscription.getSubscriptionId() == null || subscription.getApiIdentifier() == null) {
+            return;
+        }
+        remove(subscription.getSubscriptionId());
+        Subscription edge = copy(subscription);
+        edge.setApplicationId(applicationId);
+        edge.setApiIdentifier(toIdentifier(subscription.getApiIdentifier()));
+        subscriptionsById.put(edge.getSubscriptionId(), edge);
+        subscriptionsByApplication.computeIfAbsent(applicationId, key -> new HashMap<>()).put(edge.getSubscriptionId(), edge);
+        subscriptionsByApi.computeIfAbsent(edge.getApiIdentifier(), key -> new HashMap<>()).put(edge.getSubscriptionId(), edge);
+    }
+
+    /* A subscription made with the publisher ID of the API may come back with it */
+    private String toIdentifier(String apiIdOrIdentifier) {
+        String apiIdentifier = apiIndex.findIdentifier(apiIdOrIdentifier);
+        return apiIdentifier != null ? apiIdentifier : apiIdOrIdentifier;
+    }
+
+    private void unlink(Map<String, Map<String, Subscription>> index, String key, String subscriptionId) {
+        Map<String, Subscription> subscriptions = index.get(key);
+        if(subscriptions != null) {
+            subscriptions.remove(subscriptionId);
+            if(subscriptions.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private Subscription copy(Subscription subscription) {
+        Subscription copy = new Subscription();
+        copy.setSubscriptionId(subscription.getSubscriptionId());
+        copy.setApiIdentifier(subscription.getApiIdentifier());
+        copy.setApplicationId(subscription.getApplicationId());
+        copy.setTier(subscription.getTier());
+        return copy;
+    }
+}
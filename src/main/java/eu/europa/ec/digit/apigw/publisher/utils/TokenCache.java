@@ -0,0 +1,162 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import eu.europa.ec.digit.apigw.publisher.entity.AccessToken;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the access tokens minted by the WSO2 key manager, keyed by a hash of the caller credential and the scope,
+ * so the same token is reused until it is about to expire. The map is access ordered and bounded (LRU).
+ */
+@Slf4j
+@Component
+public class TokenCache {
+
+    @Value("${wso2.token.cache.max.size:1000}")
+    private int maxSize;
+
+    @Value("${wso2.token.cache.expiry.margin.seconds:60}")
+    private long expiryMarginSeconds;
+
+    @Value("${wso2.token.rejected.ttl.seconds:30}")
+    private long rejectedTtlSeconds;
+
+    private final Map<String, CachedToken> tokens = new LinkedHashMap<String, CachedToken>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedToken> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    /* Credentials refused by the key manager, with the time until which they are refused locally */
+    private final Map<String, Long> rejectedCredentials = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    public String key(String authorizationHeader, String scope) {
+        return hash(authorizationHeader, scope);
+    }
+
+    public String credentialKey(String authorizationHeader) {
+        return hash(authorizationHeader);
+    }
+
+    public synchronized boolean isRejected(String credentialKey) {
+        Long rejectedUntil = rejectedCredentials.get(credentialKey);
+        if(rejectedUntil == null) {
+            return false;
+        }
+        if(System.currentTimeMillis() >= rejectedUntil) {
+            rejectedCredentials.remove(credentialKey);
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized void reject(String credentialKey) {
+        if(rejectedTtlSeconds > 0) {
+            rejectedCredentials.put(credentialKey, System.currentTimeMillis() + rejectedTtlSeconds * 1000);
+        }
+    }
+
+    public synchronized AccessToken get(String key) {
+        CachedToken cachedToken = tokens.get(key);
+        if(cachedToken == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if(now >= cachedToken.getRefreshAt()) {
+            tokens.remove(key);
+            return null;
+        }
+        AccessToken accessToken = new AccessToken();
+        accessToken.setAccess_token(cachedToken.getAccessToken());
+        accessToken.setScope(cachedToken.getScope());
+        accessToken.setExpires_in((cachedToken.getRefreshAt() - now) / 1000 + expiryMarginSeconds);
+        return accessToken;
+    }
+
+    public synchronized void put(String key, String credentialKey, AccessToken accessToken) {
+        long validitySeconds = accessToken.getExpires_in() - expiryMarginSeconds;
+        if(accessToken.getAccess_token() == null || validitySeconds <= 0) {
+            log.debug("Token not cached, expires_in {} is within the safety margin", accessToken.getExpires_in());
+            return;
+        }
+        tokens.put(key, new CachedToken(credentialKey, accessToken.getAccess_token(), accessToken.getScope(), System.currentTimeMillis() + validitySeconds * 1000));
+    }
+
+    public synchronized long getRefreshAt(String key) {
+        CachedToken cachedToken = tokens.get(key);
+        return cachedToken == null ? 0 : cachedToken.getRefreshAt();
+    }
+
+    public synchronized boolean contains(String key) {
+        return tokens.containsKey(key);
+    }
+
+    /* Every token of the credential, whatever its scope */
+    public synchronized void evictCredential(String credentialKey) {
+        tokens.values().removeIf(cachedToken -> cachedToken.getCredentialKey().equals(credentialKey));
+    }
+
+    public synchronized int size() {
+        return tokens.size();
+    }
+
+    private String hash(String... values) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for(int i = 0; i < values.length; i++) {
+                if(i > 0) {
+                    digest.update((byte) '|');
+                }
+                digest.update(values[i].getBytes(StandardCharsets.UTF_8));
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class CachedToken {
+
+        private final String credentialKey;
+        private final String accessToken;
+        private final String scope;
+        private final long refreshAt;
+
+        CachedToken(String credentialKey, String accessToken, String scope, long refreshAt) {
+            this.credentialKey = credentialKey;
+            this.accessToken = accessToken;
+            this.scope = scope;
+            this.refreshAt = refreshAt;
+        }
+
+        String getCredentialKey() {
+            return credentialKey;
+        }
+
+        String getAccessToken() {
+            return accessToken;
+        }
+
+        String getScope() {
+            return scope;
+        }
+
+        long getRefreshAt() {
+            return refreshAt;
+        }
+    }
+}
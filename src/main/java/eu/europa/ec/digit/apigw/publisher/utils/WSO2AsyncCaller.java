@@ -0,0 +1,447 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import eu.europa.ec.digit.apigw.publisher.entity.*;
+import lombok.extern.slf4j.Slf4j;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.*;
+import org.springframework.stereotype.Component;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Non blocking counterpart of {@link WSO2Caller}: every operation returns a future completed from the
+ * HTTP client I/O threads, with the same error bodies and status codes as the blocking caller.
+ */
+@Component
+@Slf4j
+@SuppressWarnings("deprecation")
+public class WSO2AsyncCaller {
+
+    @Autowired
+    Authorization authorization;
+
+    @Autowired
+    WSO2Failures wso2Failures;
+
+    @Autowired
+    @Qualifier("publisherAsyncRestTemplate")
+    AsyncRestTemplate publisherAsyncRestTemplate;
+
+    @Autowired
+    @Qualifier("storeAsyncRestTemplate")
+    AsyncRestTemplate storeAsyncRestTemplate;
+
+    @Autowired
+    NodeBalancers nodeBalancers;
+
+    @Autowired
+    ApiIndex apiIndex;
+
+    @Autowired
+    ContextTrie contextTrie;
+
+    @Autowired
+    ApiSearchIndex apiSearchIndex;
+
+    @Autowired
+    SubscriptionGraph subscriptionGraph;
+
+    @Autowired
+    BulkFanOut bulkFanOut;
+
+    @Autowired
+    RESTServiceUtils restServiceUtils;
+
+    /* The first node, LoadBalancingInterceptor sends each call to the node it picks */
+    private String wso2ApiPublisherEndpoint;
+
+    private String wso2ApiStoreEndpoint;
+
+    @PostConstruct
+    public void init() {
+        wso2ApiPublisherEndpoint = nodeBalancers.get(EndpointFamily.PUBLISHER).getBaseUrl();
+        wso2ApiStoreEndpoint = nodeBalancers.get(EndpointFamily.STORE).getBaseUrl();
+    }
+
+    public CompletableFuture<ResponseEntity<Version>> searchForVersion(String apiName, HttpServletRequest request) {
+        return searchForVersion(apiName, 100, request);
+    }
+
+    public CompletableFuture<ResponseEntity<Version>> searchForVersion(Map<String, String> callParameters, int limit, HttpServletRequest request) {
+        ApiSearchQuery searchQuery = ApiSearchQuery.of(callParameters, limit);
+        if(apiSearchIndex.isAvailable(request)) {
+            /* Once the credentials are checked, so the local copy shows nothing to a caller WSO2 would refuse */
+            return authorization.getViewAccessTokenAsync(request).thenApply(encodedAuthorization -> encodedAuthorization == null
+                    ? error(new Version(), "Missing authentication", HttpStatus.UNAUTHORIZED)
+                    : new ResponseEntity<>(apiSearchIndex.search(searchQuery), HttpStatus.OK));
+        }
+        return exchange(publisherAsyncRestTemplate, authorization.getViewAccessTokenAsync(request), request, false, searchQuery.toUri(wso2ApiPublisherEndpoint), HttpMethod.GET, null, null, Version.class,
+                () -> error(new Version(), "Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> error(new Version(), "There was a problem searching the APIs, try again later on.", HttpStatus.BAD_REQUEST)).thenApply(this::learnApis);
+    }
+
+    public CompletableFuture<ResponseEntity<Version>> searchForVersion(String apiName, int limit, HttpServletRequest request) {
+        URI query = new ApiSearchQuery(apiName, null, 0, limit).toUri(wso2ApiPublisherEndpoint);
+        return exchange(publisherAsyncRestTemplate, authorization.getViewAccessTokenAsync(request), request, false, query, HttpMethod.GET, null, null, Version.class,
+                () -> error(new Version(), "Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> new ResponseEntity<>(HttpStatus.BAD_REQUEST)).thenApply(this::learnApis);
+    }
+
+    /* The publisher ID of an API known in the store as provider-name-version, 404 when WSO2 has no such API */
+    public CompletableFuture<ResponseEntity<String>> findApiId(String apiIdentifier, HttpServletRequest request) {
+        String apiId = apiIndex.findId(apiIdentifier);
+        if(apiId != null) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(apiId, HttpStatus.OK));
+        }
+        /* Not seen yet, one search by name brings every version of the API into the index */
+        return searchForVersion(restServiceUtils.getApiNameFromIdentifier(apiIdentifier), 100, request).thenApply(searchCall -> {
+            if(!searchCall.getStatusCode().is2xxSuccessful()) {
+                return new ResponseEntity<>(searchCall.getStatusCode());
+            }
+            String foundId = apiIndex.findId(apiIdentifier);
+            return foundId != null ? new ResponseEntity<>(foundId, HttpStatus.OK) : new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        });
+    }
+
+    /* An API whose name or context is in the way of a new one, 404 when there is none. Checked in the ContextTrie while
+       the catalogue mirror is fresh, otherwise by searching WSO2 for the name, which finds no context clash */
+    public CompletableFuture<ResponseEntity<Api>> findConflictingApi(String apiName, String apiContext, HttpServletRequest request) {
+        if(contextTrie.isAvailable()) {
+            Api conflictingApi = contextTrie.findConflict(apiName, apiContext);
+            return CompletableFuture.completedFuture(conflictingApi != null ? new ResponseEntity<>(conflictingApi, HttpStatus.OK) : new ResponseEntity<>(HttpStatus.NOT_FOUND));
+        }
+        return searchForVersion(apiName, request).thenApply(previousVersionsCall -> {
+            if(!previousVersionsCall.getStatusCode().is2xxSuccessful()) {
+                return new ResponseEntity<>(previousVersionsCall.getStatusCode());
+            }
+            for(Api existingApi : previousVersionsCall.getBody().getList()) {
+                if(existingApi.getName().equals(apiName)) {
+                    return new ResponseEntity<>(existingApi, HttpStatus.OK);
+                }
+            }
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        });
+    }
+
+    public CompletableFuture<ResponseEntity<String>> getApiDetails(String apiId, HttpServletRequest request) {
+        return getApiDetails(apiId, false, request);
+    }
+
+    /* The definition an update is made from, always read from WSO2: one changed elsewhere since it was cached would be
+       overwritten by the PUT */
+    public CompletableFuture<ResponseEntity<String>> getApiDetailsForUpdate(String apiId, HttpServletRequest request) {
+        return getApiDetails(apiId, true, request);
+    }
+
+    private CompletableFuture<ResponseEntity<String>> getApiDetails(String apiId, boolean bypassCache, HttpServletRequest request) {
+        return exchange(publisherAsyncRestTemplate, authorization.getViewAccessTokenAsync(request), request, bypassCache, wso2ApiPublisherEndpoint + "/" + apiId, HttpMethod.GET, null, null, String.class,
+                () -> new ResponseEntity<>("Missing credentials.", HttpStatus.UNAUTHORIZED),
+                e -> new ResponseEntity<>("There was a problem getting the API: " + apiId + " , try again later on.", HttpStatus.SERVICE_UNAVAILABLE));
+    }
+
+    public CompletableFuture<ResponseEntity<Api>> getApi(String apiId, HttpServletRequest request) {
+        return exchange(publisherAsyncRestTemplate, authorization.getViewAccessTokenAsync(request), request, wso2ApiPublisherEndpoint + "/" + apiId, HttpMethod.GET, null, null, Api.class,
+                () -> error(new Api(), "Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> error(new Api(), "There was a problem getting the API, try again later on.", HttpStatus.SERVICE_UNAVAILABLE)).thenApply(this::learnApi);
+    }
+
+    public CompletableFuture<ResponseEntity<Api>> createNewVersion(String apiId, String newVersion, HttpServletRequest request) {
+        return exchange(publisherAsyncRestTemplate, authorization.getCreateAccessTokenAsync(request), request, wso2ApiPublisherEndpoint + "/copy-api?apiId=" + apiId + "&newVersion=" + newVersion, HttpMethod.POST, null, null, Api.class,
+                () -> error(new Api(), "Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> error(new Api(), "Version could not be created, check if this version exists already: " + newVersion, HttpStatus.CONFLICT)).thenApply(this::learnWrittenApi);
+    }
+
+    public CompletableFuture<ResponseEntity<Api>> updateDefinition(String apiId, String templatePayload, HttpServletRequest request) {
+        return exchange(publisherAsyncRestTemplate, authorization.getCreateAccessTokenAsync(request), request, wso2ApiPublisherEndpoint + "/" + apiId, HttpMethod.PUT, MediaType.APPLICATION_JSON, templatePayload, Api.class,
+                () -> error(new Api(), "Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> error(new Api(), "New version with ID: " + apiId + " could not be updated, please check the configuration.", HttpStatus.BAD_REQUEST)).thenApply(this::learnWrittenApi);
+    }
+
+    public CompletableFuture<ResponseEntity<String>> publishApi(String apiId, HttpServletRequest request) {
+        return exchange(publisherAsyncRestTemplate, authorization.getPublishAccessTokenAsync(request), request, wso2ApiPublisherEndpoint + "/change-lifecycle?apiId=" + apiId + "&action=Publish", HttpMethod.POST, null, null, String.class,
+                () -> new ResponseEntity<>("Missing credentials", HttpStatus.UNAUTHORIZED),
+                e -> new ResponseEntity<>("API with ID: " + apiId + " could not be published", HttpStatus.BAD_REQUEST));
+    }
+
+    public CompletableFuture<ResponseEntity<String>> deleteApi(String apiId, HttpServletRequest request) {
+        return exchange(publisherAsyncRestTemplate, authorization.getCreateAccessTokenAsync(request), request, wso2ApiPublisherEndpoint + "/" + apiId, HttpMethod.DELETE, null, null, String.class,
+                () -> new ResponseEntity<>("Missing credentials", HttpStatus.UNAUTHORIZED),
+                e -> new ResponseEntity<>("Requested API could not be deleted", HttpStatus.CONFLICT)).thenApply(call -> forgetApi(apiId, call));
+    }
+
+    public CompletableFuture<ResponseEntity<Api>> createApi(String templatePayload, HttpServletRequest request) {
+        return exchange(publisherAsyncRestTemplate, authorization.getCreateAccessTokenAsync(request), request, wso2ApiPublisherEndpoint, HttpMethod.POST, MediaType.APPLICATION_JSON, templatePayload, Api.class,
+                () -> error(new Api(), "Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> error(new Api(), "Requested API could not be created, please check your parameters.", HttpStatus.BAD_REQUEST)).thenApply(this::learnWrittenApi);
+    }
+
+    public CompletableFuture<ResponseEntity<String>> updateSwagger(String apiId, String swaggerDefinition, HttpServletRequest request) {
+        MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
+        body.add("apiDefinition", swaggerDefinition);
+        return exchange(publisherAsyncRestTemplate, authorization.getCreateAccessTokenAsync(request), request, wso2ApiPublisherEndpoint + "/" + apiId + "/swagger", HttpMethod.PUT, MediaType.MULTIPART_FORM_DATA, body, String.class,
+                () -> new ResponseEntity<>("Missing Credentials", HttpStatus.UNAUTHORIZED),
+                e -> new ResponseEntity<>("Requested API swagger could not be updated", HttpStatus.CONFLICT));
+    }
+
+    public CompletableFuture<ResponseEntity<ApplicationList>> searchApplications(HttpServletRequest request) {
+        return exchange(storeAsyncRestTemplate, authorization.getSubscribeAccessTokenAsync(request), request, wso2ApiStoreEndpoint + "/applications", HttpMethod.GET, null, null, ApplicationList.class,
+                () -> error(new ApplicationList(), "Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> error(new ApplicationList(), "Application list could be retrieved, try again later.", HttpStatus.BAD_REQUEST));
+    }
+
+    public CompletableFuture<ResponseEntity<SubscriptionList>> searchSubscriptionsForApplication(String applicationID, HttpServletRequest request) {
+        return exchange(storeAsyncRestTemplate, authorization.getSubscribeAccessTokenAsync(request), request, wso2ApiStoreEndpoint + "/subscriptions?applicationId=" + applicationID, HttpMethod.GET, null, null, SubscriptionList.class,
+                () -> error(new SubscriptionList(), "Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> error(new SubscriptionList(), "Subscription list could be retrieved, try again later.", HttpStatus.BAD_REQUEST)).thenApply(call -> learnSubscriptions(applicationID, call));
+    }
+
+    /* The subscriptions of the applications of the caller to an API, given by its publisher ID or as provider-name-version,
+       404 when WSO2 has no such API. Answered from the SubscriptionGraph, only the applications whose subscriptions are
+       older than its TTL are read again from the store, which only lists subscriptions by application: the first call
+       of a user reads every application, as bulk calls at most wso2.bulk.parallelism at a time */
+    public CompletableFuture<ResponseEntity<SubscriptionList>> searchSubscriptionsByApi(String api, HttpServletRequest request) {
+        return findApiIdentifier(api, request).thenCompose(identifierCall -> {
+            if(!identifierCall.getStatusCode().is2xxSuccessful()) {
+                String message = identifierCall.getStatusCode() == HttpStatus.NOT_FOUND ? "No API found for: " + api : "There was a problem getting the API, try again later on.";
+                return CompletableFuture.completedFuture(error(new SubscriptionList(), message, identifierCall.getStatusCode()));
+            }
+            return searchApplications(request).thenCompose(applicationsCall -> {
+                if(!applicationsCall.getStatusCode().is2xxSuccessful()) {
+                    return CompletableFuture.completedFuture(error(new SubscriptionList(), "Application list could be retrieved, try again later.", applicationsCall.getStatusCode()));
+                }
+                Set<String> applicationIds = new HashSet<>();
+                List<String> toLoad = new ArrayList<>();
+                List<Application> applications = applicationsCall.getBody().getList();
+                for(Application application : applications == null ? new ArrayList<Application>() : applications) {
+                    applicationIds.add(application.getApplicationId());
+                    if(!subscriptionGraph.isComplete(application.getApplicationId())) {
+                        toLoad.add(application.getApplicationId());
+                    }
+                }
+                if(!toLoad.isEmpty()) {
+                    CallPriority.markBulk(request);
+                }
+                Map<String, HttpStatus> failedLoads = new ConcurrentHashMap<>();
+                return bulkFanOut.forEach("subscription.search.api", toLoad, applicationId -> searchSubscriptionsForApplication(applicationId, request).thenAccept(loadCall -> {
+                    if(!loadCall.getStatusCode().is2xxSuccessful()) {
+                        failedLoads.put(applicationId, loadCall.getStatusCode());
+                    }
+                })).thenApply(done -> {
+                    if(!failedLoads.isEmpty()) {
+                        return error(new SubscriptionList(), "Subscription list could be retrieved, try again later.", failedLoads.values().iterator().next());
+                    }
+                    SubscriptionList subscriptionList = new SubscriptionList();
+                    subscriptionList.setList(subscriptionGraph.findByApi(identifierCall.getBody(), applicationIds));
+                    subscriptionList.setCount(subscriptionList.getList().size());
+                    return new ResponseEntity<>(subscriptionList, HttpStatus.OK);
+                });
+            });
+        });
+    }
+
+    /* The store identifier, provider-name-version, of an API given by its publisher ID or already as an identifier, 404
+       when WSO2 has no such API. The ApiIndex first, then the publisher, which teaches the index */
+    public CompletableFuture<ResponseEntity<String>> findApiIdentifier(String api, HttpServletRequest request) {
+        String apiIdentifier = apiIndex.findIdentifier(api);
+        if(apiIdentifier != null || apiIndex.findId(api) != null) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(apiIdentifier != null ? apiIdentifier : api, HttpStatus.OK));
+        }
+        return getApi(api, request).thenCompose(apiCall -> {
+            Api found = apiCall.getBody();
+            if(apiCall.getStatusCode().is2xxSuccessful() && found != null && found.getProvider() != null && found.getName() != null && found.getVersion() != null) {
+                return CompletableFuture.completedFuture(new ResponseEntity<>(ApiIndex.identifier(found.getProvider(), found.getName(), found.getVersion()), HttpStatus.OK));
+            }
+            /* Not a publisher ID, maybe an identifier not seen yet */
+            return findApiId(api, request).thenApply(findCall -> findCall.getStatusCode().is2xxSuccessful()
+                    ? new ResponseEntity<>(api, HttpStatus.OK) : new ResponseEntity<>(findCall.getStatusCode()));
+        });
+    }
+
+    public CompletableFuture<ResponseEntity<Application>> getApplicationDetail(String applicationID, HttpServletRequest request) {
+        return exchange(storeAsyncRestTemplate, authorization.getSubscribeAccessTokenAsync(request), request, wso2ApiStoreEndpoint + "/applications/" + applicationID, HttpMethod.GET, null, null, Application.class,
+                () -> error(new Application(), "Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> error(new Application(), "Application could be retrieved, try again later.", HttpStatus.BAD_REQUEST));
+    }
+
+    public CompletableFuture<ResponseEntity<Subscription>> subscribe(String applicationId, String apiId, HttpServletRequest request) {
+        JSONObject subscription = new JSONObject();
+        subscription.put("tier", "Unlimited");
+        subscription.put("apiIdentifier", apiId);
+        subscription.put("applicationId", applicationId);
+        return exchange(storeAsyncRestTemplate, authorization.getSubscribeAccessTokenAsync(request), request, wso2ApiStoreEndpoint + "/subscriptions", HttpMethod.POST, MediaType.APPLICATION_JSON, subscription.toString(), Subscription.class,
+                () -> error(new Subscription(), "Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> error(new Subscription(), "We were not able to subscribe to the API, please try again later.", HttpStatus.BAD_REQUEST)).thenApply(call -> learnSubscription(applicationId, call));
+    }
+
+    public CompletableFuture<ResponseEntity<String>> unsubscribe(String subscriptionId, HttpServletRequest request) {
+        return exchange(storeAsyncRestTemplate, authorization.getSubscribeAccessTokenAsync(request), request, wso2ApiStoreEndpoint + "/subscriptions/" + subscriptionId, HttpMethod.DELETE, null, null, String.class,
+                () -> new ResponseEntity<>("Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> new ResponseEntity<>("Requested API could not be unsubscribed", HttpStatus.CONFLICT)).thenApply(call -> forgetSubscription(subscriptionId, call));
+    }
+
+    public CompletableFuture<ResponseEntity<ApplicationKey>> generateKey(String applicationID, int validityTime, HttpServletRequest request) {
+        JSONArray accessDomains = new JSONArray();
+        accessDomains.put("ALL");
+        JSONObject application = new JSONObject();
+        application.put("validityTime", validityTime+"");
+        application.put("keyType", "PRODUCTION");
+        application.put("accessAllowDomains", accessDomains);
+        return exchange(storeAsyncRestTemplate, authorization.getSubscribeAccessTokenAsync(request), request, wso2ApiStoreEndpoint + "/applications/generate-keys?applicationId=" + applicationID, HttpMethod.POST, MediaType.APPLICATION_JSON, application.toString(), ApplicationKey.class,
+                () -> error(new ApplicationKey(), "Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> error(new ApplicationKey(), "Application count not be created", HttpStatus.BAD_REQUEST));
+    }
+
+    public CompletableFuture<ResponseEntity<Application>> createApplication(String applicationName, HttpServletRequest request) {
+        JSONObject application = new JSONObject();
+        application.put("throttlingTier", "Unlimited");
+        application.put("name", applicationName);
+        return exchange(storeAsyncRestTemplate, authorization.getSubscribeAccessTokenAsync(request), request, wso2ApiStoreEndpoint + "/applications", HttpMethod.POST, MediaType.APPLICATION_JSON, application.toString(), Application.class,
+                () -> error(new Application(), "Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> error(new Application(), "Application count not be created", HttpStatus.BAD_REQUEST));
+    }
+
+    public CompletableFuture<ResponseEntity<String>> removeApplication(String applicationID, HttpServletRequest request) {
+        return exchange(storeAsyncRestTemplate, authorization.getSubscribeAccessTokenAsync(request), request, wso2ApiStoreEndpoint + "/applications/" + applicationID, HttpMethod.DELETE, null, null, String.class,
+                () -> new ResponseEntity<>("Missing authentication", HttpStatus.UNAUTHORIZED),
+                e -> new ResponseEntity<>("Application count not be created", HttpStatus.BAD_REQUEST)).thenApply(call -> forgetApplication(applicationID, call));
+    }
+
+    private <T> CompletableFuture<ResponseEntity<T>> exchange(AsyncRestTemplate template, CompletableFuture<String> accessToken, HttpServletRequest request, String url, HttpMethod method,
+                                                              MediaType contentType, Object body, Class<T> responseType,
+                                                              Supplier<ResponseEntity<T>> missingAuthentication, Function<Throwable, ResponseEntity<T>> onError) {
+        return exchange(template, accessToken, request, false, url, method, contentType, body, responseType, missingAuthentication, onError);
+    }
+
+    private <T> CompletableFuture<ResponseEntity<T>> exchange(AsyncRestTemplate template, CompletableFuture<String> accessToken, HttpServletRequest request, boolean bypassCache,
+                                                              String url, HttpMethod method, MediaType contentType, Object body, Class<T> responseType,
+                                                              Supplier<ResponseEntity<T>> missingAuthentication, Function<Throwable, ResponseEntity<T>> onError) {
+        return exchange(template, accessToken, request, bypassCache, template.getUriTemplateHandler().expand(url), method, contentType, body, responseType, missingAuthentication, onError);
+    }
+
+    /* Takes a URI already encoded, as the searches build it */
+    private <T> CompletableFuture<ResponseEntity<T>> exchange(AsyncRestTemplate template, CompletableFuture<String> accessToken, HttpServletRequest request, boolean bypassCache,
+                                                              URI url, HttpMethod method, MediaType contentType, Object body, Class<T> responseType,
+                                                              Supplier<ResponseEntity<T>> missingAuthentication, Function<Throwable, ResponseEntity<T>> onError) {
+        return accessToken.thenCompose(encodedAuthorization -> {
+            if(CancellableRequest.isCancelled(request)) {
+                /* The client has had its timeout response, nothing more is sent to WSO2 for it */
+                throw new CancellationException("The pipeline of " + method + " " + url + " timed out");
+            }
+            if(encodedAuthorization == null) {
+                return CompletableFuture.completedFuture(missingAuthentication.get());
+            }
+            HttpHeaders headers = new HttpHeaders();
+            headers.set("Authorization", "Bearer " + encodedAuthorization);
+            if(CallPriority.of(request) == CallPriority.BULK) {
+                headers.set(CallPriority.HEADER, CallPriority.BULK.name());
+            }
+            /* Only the publisher chain has the metadata cache, and strips the bypass header before the call is sent */
+            if(template == publisherAsyncRestTemplate && (bypassCache || ApiMetadataCache.isBypassRequested(request))) {
+                headers.set(ApiMetadataCache.BYPASS_HEADER, "true");
+            }
+            if(contentType != null) {
+                headers.setContentType(contentType);
+            }
+            return template.exchange(url, method, new HttpEntity<>(body, headers), responseType).completable();
+        }).handle((response, e) -> {
+            if(e == null) {
+                return response;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if(cause instanceof CancellationException) {
+                log.warn(cause.getMessage());
+                return onError.apply(cause);
+            }
+            log.error(cause.getMessage(), cause);
+            return wso2Failures.translate(cause, OperationClass.of(method, url.getPath()), request, onError.apply(cause));
+        });
+    }
+
+    private ResponseEntity<Api> learnApi(ResponseEntity<Api> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            apiIndex.learn(call.getBody());
+            contextTrie.learn(call.getBody());
+        }
+        return call;
+    }
+
+    /* Only what this service wrote goes to the search index, a read with the caller's token may show what the mirror user cannot see */
+    private ResponseEntity<Api> learnWrittenApi(ResponseEntity<Api> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            apiSearchIndex.learn(call.getBody());
+        }
+        return learnApi(call);
+    }
+
+    private ResponseEntity<Version> learnApis(ResponseEntity<Version> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            apiIndex.learn(call.getBody());
+        }
+        return call;
+    }
+
+    private ResponseEntity<String> forgetApi(String apiId, ResponseEntity<String> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            apiIndex.forget(apiId);
+            contextTrie.forget(apiId);
+            apiSearchIndex.forget(apiId);
+        }
+        return call;
+    }
+
+    private ResponseEntity<SubscriptionList> learnSubscriptions(String applicationId, ResponseEntity<SubscriptionList> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            subscriptionGraph.replaceApplication(applicationId, call.getBody());
+        }
+        return call;
+    }
+
+    private ResponseEntity<Subscription> learnSubscription(String applicationId, ResponseEntity<Subscription> call) {
+        if(call.getStatusCode().is2xxSuccessful() && call.getBody() != null) {
+            if(call.getBody().getApplicationId() == null) {
+                call.getBody().setApplicationId(applicationId);
+            }
+            subscriptionGraph.add(call.getBody());
+        }
+        return call;
+    }
+
+    private ResponseEntity<String> forgetSubscription(String subscriptionId, ResponseEntity<String> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            subscriptionGraph.remove(subscriptionId);
+        }
+        return call;
+    }
+
+    private ResponseEntity<String> forgetApplication(String applicationId, ResponseEntity<String> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            subscriptionGraph.removeApplication(applicationId);
+        }
+        return call;
+    }
+
+    private <T extends CallResult> ResponseEntity<T> error(T body, String message, HttpStatus status) {
+        body.setCallError(true);
+        body.setCallErrorMessage(message);
+        return new ResponseEntity<>(body, status);
+    }
+}
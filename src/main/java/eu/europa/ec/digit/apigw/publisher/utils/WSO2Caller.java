@@ -5,16 +5,16 @@ import lombok.extern.slf4j.Slf4j;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.*;
 import org.springframework.stereotype.Component;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.RestTemplate;
 
+import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpServletRequest;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
+import java.net.URI;
 import java.util.Map;
 
 
@@ -26,14 +26,42 @@ public class WSO2Caller {
     Authorization authorization;
 
     @Autowired
-    RestTemplate restTemplate;
+    WSO2Failures wso2Failures;
 
-    @Value("${wso2.api.publisher.endpoint}")
+    @Autowired
+    @Qualifier("publisherRestTemplate")
+    RestTemplate publisherRestTemplate;
+
+    @Autowired
+    @Qualifier("storeRestTemplate")
+    RestTemplate storeRestTemplate;
+
+    @Autowired
+    NodeBalancers nodeBalancers;
+
+    @Autowired
+    ApiIndex apiIndex;
+
+    @Autowired
+    ContextTrie contextTrie;
+
+    @Autowired
+    ApiSearchIndex apiSearchIndex;
+
+    @Autowired
+    SubscriptionGraph subscriptionGraph;
+
+    /* The first node, LoadBalancingInterceptor sends each call to the node it picks */
     private String wso2ApiPublisherEndpoint;
 
-    @Value("${wso2.api.store.endpoint}")
     private String wso2ApiStoreEndpoint;
 
+    @PostConstruct
+    public void init() {
+        wso2ApiPublisherEndpoint = nodeBalancers.get(EndpointFamily.PUBLISHER).getBaseUrl();
+        wso2ApiStoreEndpoint = nodeBalancers.get(EndpointFamily.STORE).getBaseUrl();
+    }
+
     public ResponseEntity<Version> searchForVersion(String apiName, HttpServletRequest request) {
         return searchForVersion(apiName, 100, request);
     }
@@ -44,8 +72,8 @@ public class WSO2Caller {
 
     public ResponseEntity<Version> searchForVersion(Map<String, String> callParameters, int limit, HttpServletRequest request){
         try {
-            if(limit <= 0) limit = 25;
-            HttpHeaders headers = new HttpHeaders();
+            ApiSearchQuery searchQuery = ApiSearchQuery.of(callParameters, limit);
+            HttpHeaders headers = newPublisherHeaders(request);
             String encodedAuthorization = authorization.getViewAccessToken(request);
             if(encodedAuthorization == null) {
                 Version errorVersion = new Version();
@@ -54,19 +82,23 @@ public class WSO2Caller {
                 return new ResponseEntity<>(errorVersion, HttpStatus.UNAUTHORIZED);
             }
             headers.set("Authorization", "Bearer " + encodedAuthorization);
-            String queryParam = "name:" + callParameters.get(Constants.API_NAME_PARAMETER);
-            String query = wso2ApiPublisherEndpoint + "?query=" + queryParam + "&limit=" + limit;
-            return restTemplate.exchange(query, HttpMethod.GET, new HttpEntity(headers), Version.class);
+            /* Once the credentials are checked, so the local copy shows nothing to a caller WSO2 would refuse */
+            if(apiSearchIndex.isAvailable(request)) {
+                return new ResponseEntity<>(apiSearchIndex.search(searchQuery), HttpStatus.OK);
+            }
+            return learnApis(publisherRestTemplate.exchange(searchQuery.toUri(wso2ApiPublisherEndpoint), HttpMethod.GET, new HttpEntity(headers), Version.class));
         } catch (Exception e) {
             log.error(e.getMessage(), e);
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            Version errorVersion = new Version();
+            errorVersion.setCallError(true);
+            errorVersion.setCallErrorMessage("There was a problem searching the APIs, try again later on.");
+            return wso2Failures.translate(e, OperationClass.READ, request, new ResponseEntity<>(errorVersion, HttpStatus.BAD_REQUEST));
         }
     }
 
     public ResponseEntity<Version> searchForVersion(String apiName, int limit, HttpServletRequest request){
         try {
-            if(limit <= 0) limit = 25;
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newPublisherHeaders(request);
             String encodedAuthorization = authorization.getViewAccessToken(request);
             if(encodedAuthorization == null) {
                 Version errorVersion = new Version();
@@ -75,27 +107,39 @@ public class WSO2Caller {
                 return new ResponseEntity<>(errorVersion, HttpStatus.UNAUTHORIZED);
             }
             headers.set("Authorization", "Bearer " + encodedAuthorization);
-            String queryParam = "name:" + apiName;
-            String query = wso2ApiPublisherEndpoint + "?query=" + queryParam + "&limit=" + limit;
-            return restTemplate.exchange(query, HttpMethod.GET, new HttpEntity(headers), Version.class);
+            URI query = new ApiSearchQuery(apiName, null, 0, limit).toUri(wso2ApiPublisherEndpoint);
+            return learnApis(publisherRestTemplate.exchange(query, HttpMethod.GET, new HttpEntity(headers), Version.class));
         } catch (Exception e) {
             log.error(e.getMessage(), e);
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            return wso2Failures.translate(e, OperationClass.READ, request, new ResponseEntity<>(HttpStatus.BAD_REQUEST));
         }
     }
 
     public ResponseEntity<String> getApiDetails(String apiId, HttpServletRequest request) {
+        return getApiDetails(apiId, false, request);
+    }
+
+    /* The definition an update is made from, always read from WSO2: one changed elsewhere since it was cached would be
+       overwritten by the PUT */
+    public ResponseEntity<String> getApiDetailsForUpdate(String apiId, HttpServletRequest request) {
+        return getApiDetails(apiId, true, request);
+    }
+
+    private ResponseEntity<String> getApiDetails(String apiId, boolean bypassCache, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newPublisherHeaders(request);
+            if(bypassCache) {
+                headers.set(ApiMetadataCache.BYPASS_HEADER, "true");
+            }
             String encodedAuthorization = authorization.getViewAccessToken(request);
             if(encodedAuthorization == null) {
                 return new ResponseEntity<>("Missing credentials.", HttpStatus.UNAUTHORIZED);
             }
             headers.set("Authorization", "Bearer " + encodedAuthorization);
-            return restTemplate.exchange(wso2ApiPublisherEndpoint + "/" + apiId, HttpMethod.GET, new HttpEntity(headers), String.class);
+            return publisherRestTemplate.exchange(wso2ApiPublisherEndpoint + "/" + apiId, HttpMethod.GET, new HttpEntity(headers), String.class);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
-            return new ResponseEntity<>("There was a problem getting the API: " + apiId + " , try again later on.", HttpStatus.SERVICE_UNAVAILABLE);
+            return wso2Failures.translate(e, OperationClass.READ, request, new ResponseEntity<>("There was a problem getting the API: " + apiId + " , try again later on.", HttpStatus.SERVICE_UNAVAILABLE));
         }
     }
 
@@ -117,7 +161,7 @@ public class WSO2Caller {
 
     public ResponseEntity<Api> getApi(String apiId, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newPublisherHeaders(request);
             String encodedAuthorization = authorization.getViewAccessToken(request);
             if(encodedAuthorization == null) {
                 Api errorApi = new Api();
@@ -126,19 +170,19 @@ public class WSO2Caller {
                 return new ResponseEntity<>(errorApi, HttpStatus.UNAUTHORIZED);
             }
             headers.set("Authorization", "Bearer " + encodedAuthorization);
-            return restTemplate.exchange(wso2ApiPublisherEndpoint + "/" + apiId, HttpMethod.GET, new HttpEntity(headers), Api.class);
+            return learnApi(publisherRestTemplate.exchange(wso2ApiPublisherEndpoint + "/" + apiId, HttpMethod.GET, new HttpEntity(headers), Api.class));
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             Api errorApi = new Api();
             errorApi.setCallError(true);
             errorApi.setCallErrorMessage("There was a problem getting the API, try again later on.");
-            return new ResponseEntity<>(errorApi, HttpStatus.SERVICE_UNAVAILABLE);
+            return wso2Failures.translate(e, OperationClass.READ, request, new ResponseEntity<>(errorApi, HttpStatus.SERVICE_UNAVAILABLE));
         }
     }
 
     public ResponseEntity<Api> createNewVersion(String apiId, String newVersion, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newPublisherHeaders(request);
             String encodedAuthorization = authorization.getCreateAccessToken(request);
             if(encodedAuthorization == null) {
                 Api errorApi = new Api();
@@ -147,19 +191,19 @@ public class WSO2Caller {
                 return new ResponseEntity<>(errorApi, HttpStatus.UNAUTHORIZED);
             }
             headers.set("Authorization", "Bearer " + encodedAuthorization);
-            return restTemplate.exchange(wso2ApiPublisherEndpoint + "/copy-api?apiId=" + apiId + "&newVersion=" + newVersion, HttpMethod.POST, new HttpEntity(headers), Api.class);
+            return learnWrittenApi(publisherRestTemplate.exchange(wso2ApiPublisherEndpoint + "/copy-api?apiId=" + apiId + "&newVersion=" + newVersion, HttpMethod.POST, new HttpEntity(headers), Api.class));
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             Api errorApi = new Api();
             errorApi.setCallError(true);
             errorApi.setCallErrorMessage("Version could not be created, check if this version exists already: " + newVersion);
-            return new ResponseEntity<>(errorApi, HttpStatus.CONFLICT);
+            return wso2Failures.translate(e, OperationClass.WRITE, request, new ResponseEntity<>(errorApi, HttpStatus.CONFLICT));
         }
     }
 
     public ResponseEntity<Api> updateDefinition(String apiId, String templatePayload, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newPublisherHeaders(request);
             String encodedAuthorization = authorization.getCreateAccessToken(request);
             if(encodedAuthorization == null) {
                 Api errorApi = new Api();
@@ -170,19 +214,19 @@ public class WSO2Caller {
             headers.set("Authorization", "Bearer " + encodedAuthorization);
             headers.setContentType(MediaType.APPLICATION_JSON);
             HttpEntity<String> entity = new HttpEntity<>(templatePayload, headers);
-            return restTemplate.exchange(wso2ApiPublisherEndpoint + "/" + apiId, HttpMethod.PUT, entity, Api.class);
+            return learnWrittenApi(publisherRestTemplate.exchange(wso2ApiPublisherEndpoint + "/" + apiId, HttpMethod.PUT, entity, Api.class));
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             Api errorApi = new Api();
             errorApi.setCallError(true);
             errorApi.setCallErrorMessage("New version with ID: " + apiId + " could not be updated, please check the configuration.");
-            return new ResponseEntity<>(errorApi, HttpStatus.BAD_REQUEST);
+            return wso2Failures.translate(e, OperationClass.WRITE, request, new ResponseEntity<>(errorApi, HttpStatus.BAD_REQUEST));
         }
     }
 
     public ResponseEntity<String> publishApi(String apiId, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newPublisherHeaders(request);
             String encodedAuthorization = authorization.getPublishAccessToken(request);
             if(encodedAuthorization == null) {
                 return new ResponseEntity<>("Missing credentials", HttpStatus.UNAUTHORIZED);
@@ -190,16 +234,16 @@ public class WSO2Caller {
             headers.set("Authorization", "Bearer " + encodedAuthorization);
 
             HttpEntity<String> entity = new HttpEntity<>(headers);
-            return restTemplate.exchange(wso2ApiPublisherEndpoint + "/change-lifecycle?apiId=" + apiId + "&action=Publish", HttpMethod.POST, entity, String.class);
+            return publisherRestTemplate.exchange(wso2ApiPublisherEndpoint + "/change-lifecycle?apiId=" + apiId + "&action=Publish", HttpMethod.POST, entity, String.class);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
-            return new ResponseEntity<>("API with ID: " + apiId + " could not be published", HttpStatus.BAD_REQUEST);
+            return wso2Failures.translate(e, OperationClass.LIFECYCLE, request, new ResponseEntity<>("API with ID: " + apiId + " could not be published", HttpStatus.BAD_REQUEST));
         }
     }
 
     public ResponseEntity<String> deleteApi(String apiId, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newPublisherHeaders(request);
             String encodedAuthorization = authorization.getCreateAccessToken(request);
             if(encodedAuthorization == null) {
                 return new ResponseEntity<>("Missing credentials", HttpStatus.UNAUTHORIZED);
@@ -207,16 +251,16 @@ public class WSO2Caller {
             headers.set("Authorization", "Bearer " + encodedAuthorization);
 
             HttpEntity<String> entity = new HttpEntity<>(headers);
-            return restTemplate.exchange(wso2ApiPublisherEndpoint + "/" + apiId, HttpMethod.DELETE, entity, String.class);
+            return forgetApi(apiId, publisherRestTemplate.exchange(wso2ApiPublisherEndpoint + "/" + apiId, HttpMethod.DELETE, entity, String.class));
         } catch (Exception e) {
             log.error(e.getMessage(), e);
-            return new ResponseEntity<>("Requested API could not be deleted", HttpStatus.CONFLICT);
+            return wso2Failures.translate(e, OperationClass.WRITE, request, new ResponseEntity<>("Requested API could not be deleted", HttpStatus.CONFLICT));
         }
     }
 
     public ResponseEntity<Api> createApi(String templatePayload, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newPublisherHeaders(request);
             String encodedAuthorization = authorization.getCreateAccessToken(request);
             if(encodedAuthorization == null) {
                 Api errorApi = new Api();
@@ -227,19 +271,19 @@ public class WSO2Caller {
             headers.set("Authorization", "Bearer " + encodedAuthorization);
             headers.setContentType(MediaType.APPLICATION_JSON);
             HttpEntity<String> entity = new HttpEntity<>(templatePayload, headers);
-            return restTemplate.exchange(wso2ApiPublisherEndpoint, HttpMethod.POST, entity, Api.class);
+            return learnWrittenApi(publisherRestTemplate.exchange(wso2ApiPublisherEndpoint, HttpMethod.POST, entity, Api.class));
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             Api errorApi = new Api();
             errorApi.setCallError(true);
             errorApi.setCallErrorMessage("Requested API could not be created, please check your parameters.");
-            return new ResponseEntity<>(errorApi, HttpStatus.BAD_REQUEST);
+            return wso2Failures.translate(e, OperationClass.WRITE, request, new ResponseEntity<>(errorApi, HttpStatus.BAD_REQUEST));
         }
     }
 
     public ResponseEntity<String> updateSwagger(String apiId, String swaggerDefinition, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newPublisherHeaders(request);
             String encodedAuthorization = authorization.getCreateAccessToken(request);
             if(encodedAuthorization == null) {
                 return new ResponseEntity<>("Missing Credentials", HttpStatus.UNAUTHORIZED);
@@ -250,16 +294,16 @@ public class WSO2Caller {
             MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
             body.add("apiDefinition", swaggerDefinition);
             HttpEntity<MultiValueMap<String, Object>> entity = new HttpEntity<>(body, headers);
-            return restTemplate.exchange(wso2ApiPublisherEndpoint + "/" + apiId + "/swagger", HttpMethod.PUT, entity, String.class);
+            return publisherRestTemplate.exchange(wso2ApiPublisherEndpoint + "/" + apiId + "/swagger", HttpMethod.PUT, entity, String.class);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
-            return new ResponseEntity<>("Requested API swagger could not be updated", HttpStatus.CONFLICT);
+            return wso2Failures.translate(e, OperationClass.SWAGGER_UPLOAD, request, new ResponseEntity<>("Requested API swagger could not be updated", HttpStatus.CONFLICT));
         }
     }
 
     public ResponseEntity<ApplicationList> searchApplications(HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newHeaders(request);
             String encodedAuthorization = authorization.getSubscribeAccessToken(request);
             if(encodedAuthorization == null) {
                 ApplicationList errorApplicationList = new ApplicationList();
@@ -268,19 +312,19 @@ public class WSO2Caller {
                 return new ResponseEntity<>(errorApplicationList, HttpStatus.UNAUTHORIZED);
             }
             headers.set("Authorization", "Bearer " + encodedAuthorization);
-            return restTemplate.exchange(wso2ApiStoreEndpoint + "/applications", HttpMethod.GET, new HttpEntity(headers), ApplicationList.class);
+            return storeRestTemplate.exchange(wso2ApiStoreEndpoint + "/applications", HttpMethod.GET, new HttpEntity(headers), ApplicationList.class);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             ApplicationList errorApplicationList = new ApplicationList();
             errorApplicationList.setCallError(true);
             errorApplicationList.setCallErrorMessage("Application list could be retrieved, try again later.");
-            return new ResponseEntity<>(errorApplicationList, HttpStatus.BAD_REQUEST);
+            return wso2Failures.translate(e, OperationClass.READ, request, new ResponseEntity<>(errorApplicationList, HttpStatus.BAD_REQUEST));
         }
     }
 
     public ResponseEntity<SubscriptionList> searchSubscriptionsForApplication(String applicationID, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newHeaders(request);
             String encodedAuthorization = authorization.getSubscribeAccessToken(request);
             if(encodedAuthorization == null) {
                 SubscriptionList errorList = new SubscriptionList();
@@ -289,19 +333,19 @@ public class WSO2Caller {
                 return new ResponseEntity<>(errorList, HttpStatus.UNAUTHORIZED);
             }
             headers.set("Authorization", "Bearer " + encodedAuthorization);
-            return restTemplate.exchange(wso2ApiStoreEndpoint + "/subscriptions?applicationId=" + applicationID, HttpMethod.GET, new HttpEntity(headers), SubscriptionList.class);
+            return learnSubscriptions(applicationID, storeRestTemplate.exchange(wso2ApiStoreEndpoint + "/subscriptions?applicationId=" + applicationID, HttpMethod.GET, new HttpEntity(headers), SubscriptionList.class));
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             SubscriptionList errorList = new SubscriptionList();
             errorList.setCallError(true);
             errorList.setCallErrorMessage("Subscription list could be retrieved, try again later.");
-            return new ResponseEntity<>(errorList, HttpStatus.BAD_REQUEST);
+            return wso2Failures.translate(e, OperationClass.READ, request, new ResponseEntity<>(errorList, HttpStatus.BAD_REQUEST));
         }
     }
 
     public ResponseEntity<Application> getApplicationDetail(String applicationID, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newHeaders(request);
             String encodedAuthorization = authorization.getSubscribeAccessToken(request);
             if(encodedAuthorization == null) {
                 Application errorApplication = new Application();
@@ -310,38 +354,16 @@ public class WSO2Caller {
                 return new ResponseEntity<>(errorApplication, HttpStatus.UNAUTHORIZED);
             }
             headers.set("Authorization", "Bearer " + encodedAuthorization);
-            return restTemplate.exchange(wso2ApiStoreEndpoint + "/applications/" + applicationID, HttpMethod.GET, new HttpEntity(headers), Application.class);
+            return storeRestTemplate.exchange(wso2ApiStoreEndpoint + "/applications/" + applicationID, HttpMethod.GET, new HttpEntity(headers), Application.class);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             Application errorApplication = new Application();
             errorApplication.setCallError(true);
             errorApplication.setCallErrorMessage("Application could be retrieved, try again later.");
-            return new ResponseEntity<>(errorApplication, HttpStatus.BAD_REQUEST);
+            return wso2Failures.translate(e, OperationClass.READ, request, new ResponseEntity<>(errorApplication, HttpStatus.BAD_REQUEST));
         }
     }
 
-    /*public ResponseEntity<SubscriptionList> searchSubscriptionsByApi(String apiId, HttpServletRequest request) {
-        try {
-            HttpHeaders headers = new HttpHeaders();
-            String encodedAuthorization = authorization.getSubscribeAccessToken(request);
-            if(encodedAuthorization == null) {
-                SubscriptionList errorSubscriptionList = new SubscriptionList();
-                errorSubscriptionList.setCallError(true);
-                errorSubscriptionList.setCallErrorMessage("Missing authentication");
-                return new ResponseEntity<>(errorSubscriptionList, HttpStatus.UNAUTHORIZED);
-            }
-            headers.set("Authorization", "Bearer " + encodedAuthorization);
-            return restTemplate.exchange(wso2ApiStoreEndpoint + "/subscriptions?apiId=" + apiId, HttpMethod.GET, new HttpEntity(headers), SubscriptionList.class);
-        } catch (KeyManagementException e) {
-            e.printStackTrace();
-            return null;
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return null;
-        }
-
-    }*/
-
     public ResponseEntity<Subscription> subscribe(String applicationId, String apiId, HttpServletRequest request) {
         try {
             JSONObject subscription = new JSONObject();
@@ -349,7 +371,7 @@ public class WSO2Caller {
             subscription.put("apiIdentifier", apiId);
             subscription.put("applicationId", applicationId);
 
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newHeaders(request);
             String encodedAuthorization = authorization.getSubscribeAccessToken(request);
             if(encodedAuthorization == null) {
                 Subscription errorSubscription = new Subscription();
@@ -360,35 +382,35 @@ public class WSO2Caller {
             headers.set("Authorization", "Bearer " + encodedAuthorization);
             headers.setContentType(MediaType.APPLICATION_JSON);
             HttpEntity<String> entity = new HttpEntity<>(subscription.toString(), headers);
-            return restTemplate.exchange(wso2ApiStoreEndpoint + "/subscriptions", HttpMethod.POST, entity, Subscription.class);
+            return learnSubscription(applicationId, storeRestTemplate.exchange(wso2ApiStoreEndpoint + "/subscriptions", HttpMethod.POST, entity, Subscription.class));
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             Subscription errorSubscription = new Subscription();
             errorSubscription.setCallError(true);
             errorSubscription.setCallErrorMessage("We were not able to subscribe to the API, please try again later.");
-            return new ResponseEntity<>(errorSubscription, HttpStatus.BAD_REQUEST);
+            return wso2Failures.translate(e, OperationClass.WRITE, request, new ResponseEntity<>(errorSubscription, HttpStatus.BAD_REQUEST));
         }
     }
 
     public ResponseEntity<String> unsubscribe(String subscriptionId, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newHeaders(request);
             String encodedAuthorization = authorization.getSubscribeAccessToken(request);
             if(encodedAuthorization == null) {
                 return new ResponseEntity<>("Missing authentication", HttpStatus.UNAUTHORIZED);
             }
             headers.set("Authorization", "Bearer " + encodedAuthorization);
             HttpEntity<String> entity = new HttpEntity<>(headers);
-            return restTemplate.exchange(wso2ApiStoreEndpoint + "/subscriptions/" + subscriptionId, HttpMethod.DELETE, entity, String.class);
+            return forgetSubscription(subscriptionId, storeRestTemplate.exchange(wso2ApiStoreEndpoint + "/subscriptions/" + subscriptionId, HttpMethod.DELETE, entity, String.class));
         } catch (Exception e) {
             log.error(e.getMessage(), e);
-            return new ResponseEntity<>("Requested API could not be unsubscribed", HttpStatus.CONFLICT);
+            return wso2Failures.translate(e, OperationClass.WRITE, request, new ResponseEntity<>("Requested API could not be unsubscribed", HttpStatus.CONFLICT));
         }
     }
 
     public ResponseEntity<ApplicationKey> generateKey(String applicationID, int validityTime, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newHeaders(request);
             String encodedAuthorization = authorization.getSubscribeAccessToken(request);
             if(encodedAuthorization == null) {
                 ApplicationKey applicationKey = new ApplicationKey();
@@ -406,19 +428,19 @@ public class WSO2Caller {
             application.put("accessAllowDomains", accessDomains);
 
             HttpEntity<String> entity = new HttpEntity<>(application.toString(), headers);
-            return restTemplate.exchange(wso2ApiStoreEndpoint + "/applications/generate-keys?applicationId=" + applicationID, HttpMethod.POST, entity, ApplicationKey.class);
+            return storeRestTemplate.exchange(wso2ApiStoreEndpoint + "/applications/generate-keys?applicationId=" + applicationID, HttpMethod.POST, entity, ApplicationKey.class);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             ApplicationKey applicationKey = new ApplicationKey();
             applicationKey.setCallError(true);
             applicationKey.setCallErrorMessage("Application count not be created");
-            return new ResponseEntity<>(applicationKey, HttpStatus.BAD_REQUEST);
+            return wso2Failures.translate(e, OperationClass.WRITE, request, new ResponseEntity<>(applicationKey, HttpStatus.BAD_REQUEST));
         }
     }
 
     public ResponseEntity<Application> createApplication(String applicationName, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newHeaders(request);
             String encodedAuthorization = authorization.getSubscribeAccessToken(request);
             if(encodedAuthorization == null) {
                 Application application = new Application();
@@ -433,29 +455,110 @@ public class WSO2Caller {
             application.put("name", applicationName);
 
             HttpEntity<String> entity = new HttpEntity<>(application.toString(), headers);
-            return restTemplate.exchange(wso2ApiStoreEndpoint + "/applications", HttpMethod.POST, entity, Application.class);
+            return storeRestTemplate.exchange(wso2ApiStoreEndpoint + "/applications", HttpMethod.POST, entity, Application.class);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             Application application = new Application();
             application.setCallError(true);
             application.setCallErrorMessage("Application count not be created");
-            return new ResponseEntity<>(application, HttpStatus.BAD_REQUEST);
+            return wso2Failures.translate(e, OperationClass.WRITE, request, new ResponseEntity<>(application, HttpStatus.BAD_REQUEST));
         }
     }
 
     public ResponseEntity<String> removeApplication(String applicationID, HttpServletRequest request) {
         try {
-            HttpHeaders headers = new HttpHeaders();
+            HttpHeaders headers = newHeaders(request);
             String encodedAuthorization = authorization.getSubscribeAccessToken(request);
             if(encodedAuthorization == null) {
                 return new ResponseEntity<>("Missing authentication", HttpStatus.UNAUTHORIZED);
             }
             headers.set("Authorization", "Bearer " + encodedAuthorization);
             HttpEntity<String> entity = new HttpEntity<>(headers);
-            return restTemplate.exchange(wso2ApiStoreEndpoint + "/applications/" + applicationID, HttpMethod.DELETE, entity, String.class);
+            return forgetApplication(applicationID, storeRestTemplate.exchange(wso2ApiStoreEndpoint + "/applications/" + applicationID, HttpMethod.DELETE, entity, String.class));
         } catch (Exception e) {
             log.error(e.getMessage(), e);
-            return new ResponseEntity<>("Application count not be created", HttpStatus.BAD_REQUEST);
+            return wso2Failures.translate(e, OperationClass.WRITE, request, new ResponseEntity<>("Application count not be created", HttpStatus.BAD_REQUEST));
+        }
+    }
+
+    private ResponseEntity<Api> learnApi(ResponseEntity<Api> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            apiIndex.learn(call.getBody());
+            contextTrie.learn(call.getBody());
+        }
+        return call;
+    }
+
+    /* Only what this service wrote goes to the search index, a read with the caller's token may show what the mirror user cannot see */
+    private ResponseEntity<Api> learnWrittenApi(ResponseEntity<Api> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            apiSearchIndex.learn(call.getBody());
+        }
+        return learnApi(call);
+    }
+
+    private ResponseEntity<Version> learnApis(ResponseEntity<Version> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            apiIndex.learn(call.getBody());
+        }
+        return call;
+    }
+
+    private ResponseEntity<String> forgetApi(String apiId, ResponseEntity<String> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            apiIndex.forget(apiId);
+            contextTrie.forget(apiId);
+            apiSearchIndex.forget(apiId);
+        }
+        return call;
+    }
+
+    private ResponseEntity<SubscriptionList> learnSubscriptions(String applicationId, ResponseEntity<SubscriptionList> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            subscriptionGraph.replaceApplication(applicationId, call.getBody());
+        }
+        return call;
+    }
+
+    private ResponseEntity<Subscription> learnSubscription(String applicationId, ResponseEntity<Subscription> call) {
+        if(call.getStatusCode().is2xxSuccessful() && call.getBody() != null) {
+            if(call.getBody().getApplicationId() == null) {
+                call.getBody().setApplicationId(applicationId);
+            }
+            subscriptionGraph.add(call.getBody());
+        }
+        return call;
+    }
+
+    private ResponseEntity<String> forgetSubscription(String subscriptionId, ResponseEntity<String> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            subscriptionGraph.remove(subscriptionId);
+        }
+        return call;
+    }
+
+    private ResponseEntity<String> forgetApplication(String applicationId, ResponseEntity<String> call) {
+        if(call.getStatusCode().is2xxSuccessful()) {
+            subscriptionGraph.removeApplication(applicationId);
+        }
+        return call;
+    }
+
+    /* Bulk requests mark their calls so the limiter serves them after the interactive ones */
+    private HttpHeaders newHeaders(HttpServletRequest request) {
+        HttpHeaders headers = new HttpHeaders();
+        if(CallPriority.of(request) == CallPriority.BULK) {
+            headers.set(CallPriority.HEADER, CallPriority.BULK.name());
+        }
+        return headers;
+    }
+
+    /* Only the publisher chain has the metadata cache, and strips the bypass header before the call is sent */
+    private HttpHeaders newPublisherHeaders(HttpServletRequest request) {
+        HttpHeaders headers = newHeaders(request);
+        if(ApiMetadataCache.isBypassRequested(request)) {
+            headers.set(ApiMetadataCache.BYPASS_HEADER, "true");
         }
+        return headers;
     }
-}
+}
\ No newline at end of file
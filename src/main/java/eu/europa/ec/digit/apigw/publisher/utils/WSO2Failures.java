@@ -0,0 +1,87 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import eu.europa.ec.digit.apigw.publisher.entity.CallResult;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.http.HttpServletRequest;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reports WSO2 calls that ran out of time as 504 and calls refused because WSO2 is unavailable as 503, both with the call ID,
+ * instead of the generic error of the operation. The failure is also kept on the request, so WSO2FailureAdvice can report it
+ * when the controller builds its own error.
+ */
+@Slf4j
+@Component
+public class WSO2Failures {
+
+    public static final String FAILURE_MESSAGE_ATTRIBUTE = "WSO2_FAILURE_MESSAGE";
+    public static final String FAILURE_STATUS_ATTRIBUTE = "WSO2_FAILURE_STATUS";
+
+    @Autowired
+    private HttpClientProperties httpClientProperties;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @SuppressWarnings("unchecked")
+    public <T> ResponseEntity<T> translate(Throwable e, OperationClass operation, HttpServletRequest request, ResponseEntity<T> failure) {
+        String callID = request == null ? null : (String) request.getAttribute(Constants.CALL_ID_ATTRIBUTE);
+        String message;
+        HttpStatus status;
+        WSO2UnavailableException unavailable = findUnavailable(e);
+        if(unavailable != null) {
+            message = unavailable.getMessage();
+            status = HttpStatus.SERVICE_UNAVAILABLE;
+        } else if(isTimeout(e)) {
+            message = "The " + operation.tagValue() + " call to WSO2 timed out (limit " + httpClientProperties.getTimeout().getMs(operation) + " ms)";
+            status = HttpStatus.GATEWAY_TIMEOUT;
+            meterRegistry.counter("wso2.http.timeouts", "operation", operation.tagValue()).increment();
+        } else {
+            return failure;
+        }
+        message += callID == null ? "." : ", call ID: " + callID;
+        log.warn(message);
+        if(request != null) {
+            request.setAttribute(FAILURE_MESSAGE_ATTRIBUTE, message);
+            request.setAttribute(FAILURE_STATUS_ATTRIBUTE, status);
+        }
+
+        T body = failure.getBody();
+        if(body instanceof CallResult) {
+            CallResult result = (CallResult) body;
+            result.setCallError(true);
+            result.setCallErrorMessage(message);
+            result.setCallID(callID);
+        } else if(body instanceof String) {
+            body = (T) message;
+        }
+        return new ResponseEntity<>(body, failure.getHeaders(), status);
+    }
+
+    /* Socket read, connect and pool lease timeouts, Spring and the async client wrap them in their own exceptions */
+    public boolean isTimeout(Throwable e) {
+        for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if(cause instanceof SocketTimeoutException || cause instanceof ConnectTimeoutException || cause instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private WSO2UnavailableException findUnavailable(Throwable e) {
+        for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if(cause instanceof WSO2UnavailableException) {
+                return (WSO2UnavailableException) cause;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,64 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One node of a WSO2 endpoint family, with what the balancer knows about it.
+ */
+@Getter
+public class WSO2Node {
+
+    private final String baseUrl;
+    private final String name;
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /* Exponentially weighted latency of the last calls of each operation class, -1 until the first one: a publish
+       taking seconds says nothing about the reads of the node */
+    @Getter(AccessLevel.NONE)
+    private final double[] latencyMs = new double[OperationClass.values().length];
+    private volatile int consecutiveFailures;
+    private volatile long ejectedUntil;
+    private volatile boolean healthy = true;
+
+    public WSO2Node(String baseUrl, String name) {
+        this.baseUrl = baseUrl;
+        this.name = name;
+        Arrays.fill(latencyMs, -1);
+    }
+
+    public synchronized double getLatencyMs(OperationClass operation) {
+        return latencyMs[operation.ordinal()];
+    }
+
+    public boolean isAvailable(long now) {
+        return healthy && now >= ejectedUntil;
+    }
+
+    synchronized void recordLatency(OperationClass operation, long sampleMs, double weight) {
+        double current = latencyMs[operation.ordinal()];
+        latencyMs[operation.ordinal()] = current < 0 ? sampleMs : current + weight * (sampleMs - current);
+    }
+
+    synchronized int recordFailure() {
+        return ++consecutiveFailures;
+    }
+
+    void recordSuccess() {
+        consecutiveFailures = 0;
+    }
+
+    synchronized void eject(long until) {
+        ejectedUntil = until;
+        consecutiveFailures = 0;
+        /* The latency that got the node ejected must not eject it again when it comes back */
+        Arrays.fill(latencyMs, -1);
+    }
+
+    void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+}
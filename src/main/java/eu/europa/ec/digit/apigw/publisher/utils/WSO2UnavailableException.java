@@ -0,0 +1,13 @@
+package eu.europa.ec.digit.apigw.publisher.utils;
+
+import java.io.IOException;
+
+/**
+ * The call was not sent to WSO2 because the endpoint is known to be failing or overloaded.
+ */
+public class WSO2UnavailableException extends IOException {
+
+    public WSO2UnavailableException(String message) {
+        super(message);
+    }
+}